@@ -0,0 +1,190 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Evaluates compiled {@link AlertRules} against decoded hub frames.
+ * All state is preallocated for the number of ports: evaluation runs the flat program on a
+ * float stack and doesn't allocate.
+ * Row 0 of the field registers holds the hub-wide fields for the rules without port fields,
+ * rows 1..ports hold each port (plus the hub-wide fields).
+ */
+class AlertEngine {
+    private static final long NOT_PENDING = Long.MIN_VALUE;
+
+    interface IAlertListener {
+        /**
+         * @param port 1..ports, or 0 for hub-wide rules
+         */
+        void onAlert(String rule, int port, boolean active, long timestampNs);
+    }
+
+    private final AlertRules mRules;
+    private final int mRows;
+    private final float[] mFields;
+    private final float[] mPrevFields;
+    private boolean mPrevValid;
+    private final float[] mStack;
+    //Per rule and row
+    private final boolean[] mActive;
+    private final long[] mPendingSinceNs;
+    private IAlertListener mListener;
+
+    AlertEngine(AlertRules rules, int ports) {
+        mRules = rules;
+        mRows = ports + 1;
+        mFields = new float[mRows * AlertRules.FIELDS];
+        mPrevFields = new float[mRows * AlertRules.FIELDS];
+        mStack = new float[Math.max(1, rules.maxStack)];
+        mActive = new boolean[rules.size() * mRows];
+        mPendingSinceNs = new long[rules.size() * mRows];
+        Arrays.fill(mPendingSinceNs, NOT_PENDING);
+    }
+
+    void setListener(IAlertListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Evaluate all rules on a frame (ports 1 and 2).
+     */
+    void onFrame(HubFrame frame) {
+        setSystem(frame.sysPower);
+        for (int p = 0; p < HubFrame.PORTS; ++p) {
+            setPort(p + 1, frame.ports[p]);
+        }
+        evaluate(frame.timestampNs);
+    }
+
+    void setSystem(float sysPower) {
+        for (int r = 0; r < mRows; ++r) {
+            mFields[r * AlertRules.FIELDS + AlertRules.F_SYS_PWR] = sysPower;
+        }
+    }
+
+    void setPort(int port, HubFrame.PortFrame f) {
+        final float[] fields = mFields;
+        int base = port * AlertRules.FIELDS;
+        fields[base + AlertRules.F_ATTACHED] = f.attached ? 1 : 0;
+        fields[base + AlertRules.F_NEGOTIATED] = f.negotiated ? 1 : 0;
+        fields[base + AlertRules.F_CAP_MISMATCH] = f.capMismatch ? 1 : 0;
+        fields[base + AlertRules.F_ORIENTATION] = f.orientation ? 1 : 0;
+        fields[base + AlertRules.F_CONTRACT_OPERATE] = f.contractOperate ? 1 : 0;
+        fields[base + AlertRules.F_PB_ENABLED] = f.pbEnabled ? 1 : 0;
+        fields[base + AlertRules.F_VOLTAGE] = f.voltage;
+        fields[base + AlertRules.F_CURRENT] = f.current;
+        fields[base + AlertRules.F_POWER] = f.power;
+        fields[base + AlertRules.F_MAXPOWER] = f.maxPower;
+        fields[base + AlertRules.F_THERMAL] = f.thermal.ordinal();
+    }
+
+    /**
+     * Evaluate all rules on the fields set since the last call.
+     */
+    void evaluate(long timestampNs) {
+        final AlertRules rules = mRules;
+        for (int rule = 0; rule < rules.size(); ++rule) {
+            int start = rules.ruleStart[rule];
+            int end = rules.ruleEnd[rule];
+            if (rules.perPort[rule]) {
+                for (int row = 1; row < mRows; ++row) {
+                    update(rule, row, run(start, end, row), timestampNs);
+                }
+            } else {
+                update(rule, 0, run(start, end, 0), timestampNs);
+            }
+        }
+        System.arraycopy(mFields, 0, mPrevFields, 0, mFields.length);
+        mPrevValid = true;
+    }
+
+    /**
+     * Forget the state (hub disconnected). Active alerts are dropped without notification.
+     */
+    void reset() {
+        mPrevValid = false;
+        Arrays.fill(mActive, false);
+        Arrays.fill(mPendingSinceNs, NOT_PENDING);
+    }
+
+    boolean isActive(int rule, int port) {
+        return mActive[rule * mRows + port];
+    }
+
+    AlertRules getRules() {
+        return mRules;
+    }
+
+    //Debounce the condition with the rule "for" (raise) and "clear" delays.
+    private void update(int rule, int row, boolean condition, long timestampNs) {
+        int idx = rule * mRows + row;
+        boolean active = mActive[idx];
+        if (condition == active) {
+            mPendingSinceNs[idx] = NOT_PENDING;
+            return;
+        }
+        long since = mPendingSinceNs[idx];
+        if (since == NOT_PENDING) {
+            since = timestampNs;
+            mPendingSinceNs[idx] = since;
+        }
+        long delay = active ? mRules.clearNs[rule] : mRules.raiseNs[rule];
+        if (timestampNs - since >= delay) {
+            mActive[idx] = condition;
+            mPendingSinceNs[idx] = NOT_PENDING;
+            if (mListener != null) {
+                mListener.onAlert(mRules.getName(rule), row, condition, timestampNs);
+            }
+        }
+    }
+
+    private boolean run(int start, int end, int row) {
+        final int[] code = mRules.code;
+        final float[] consts = mRules.consts;
+        final float[] fields = mFields;
+        final float[] stack = mStack;
+        final int base = row * AlertRules.FIELDS;
+        int sp = 0;
+        int pc = start;
+        while (pc < end) {
+            switch (code[pc++]) {
+                case AlertRules.OP_LOAD_FIELD:
+                    stack[sp++] = fields[base + code[pc++]];
+                    break;
+                case AlertRules.OP_LOAD_CONST:
+                    stack[sp++] = consts[code[pc++]];
+                    break;
+                case AlertRules.OP_CHANGED: {
+                    int f = base + code[pc++];
+                    stack[sp++] = (mPrevValid && fields[f] != mPrevFields[f]) ? 1 : 0;
+                    break;
+                }
+                case AlertRules.OP_ADD: sp--; stack[sp - 1] = stack[sp - 1] + stack[sp]; break;
+                case AlertRules.OP_SUB: sp--; stack[sp - 1] = stack[sp - 1] - stack[sp]; break;
+                case AlertRules.OP_MUL: sp--; stack[sp - 1] = stack[sp - 1] * stack[sp]; break;
+                case AlertRules.OP_GT: sp--; stack[sp - 1] = (stack[sp - 1] > stack[sp]) ? 1 : 0; break;
+                case AlertRules.OP_GE: sp--; stack[sp - 1] = (stack[sp - 1] >= stack[sp]) ? 1 : 0; break;
+                case AlertRules.OP_LT: sp--; stack[sp - 1] = (stack[sp - 1] < stack[sp]) ? 1 : 0; break;
+                case AlertRules.OP_LE: sp--; stack[sp - 1] = (stack[sp - 1] <= stack[sp]) ? 1 : 0; break;
+                case AlertRules.OP_EQ: sp--; stack[sp - 1] = (stack[sp - 1] == stack[sp]) ? 1 : 0; break;
+                case AlertRules.OP_NE: sp--; stack[sp - 1] = (stack[sp - 1] != stack[sp]) ? 1 : 0; break;
+                case AlertRules.OP_AND: sp--; stack[sp - 1] = (stack[sp - 1] != 0 && stack[sp] != 0) ? 1 : 0; break;
+                case AlertRules.OP_OR: sp--; stack[sp - 1] = (stack[sp - 1] != 0 || stack[sp] != 0) ? 1 : 0; break;
+                case AlertRules.OP_NOT: stack[sp - 1] = (stack[sp - 1] == 0) ? 1 : 0; break;
+                case AlertRules.OP_NEG: stack[sp - 1] = -stack[sp - 1]; break;
+            }
+        }
+        return stack[0] != 0;
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        for (int rule = 0; rule < mRules.size(); ++rule) {
+            for (int row = 0; row < mRows; ++row) {
+                if (mActive[rule * mRows + row]) {
+                    pw.println(prefix + mRules.getName(rule) + (row == 0 ? "" : " port " + row));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.gromaudio.powerbalancing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Alert rules compiled from text into a flat postfix program ({@link AlertEngine} runs it).
+ *
+ * One rule per line, '#' starts a comment:
+ *
+ *   name: condition [for duration] [clear duration]
+ *
+ * condition: arithmetic (+ - *), comparisons (> >= < <= == !=), and / or / not, parentheses,
+ * numbers, port fields (see FIELD_NAMES), the thermal states NORMAL / WARNING / SHUTDOWN and
+ * "changed field" (true when the field differs from the previous frame).
+ * Booleans are 1/0; a plain value is true when non zero.
+ * duration: number with ms, s, m or h suffix. "for" delays raising the alert until the
+ * condition has held that long, "clear" delays clearing it (hysteresis).
+ *
+ * Rules referring to any port field are evaluated for every port, the others once per frame.
+ */
+class AlertRules {
+    //Fields (register index of the evaluation)
+    static final int F_ATTACHED = 0;
+    static final int F_NEGOTIATED = 1;
+    static final int F_CAP_MISMATCH = 2;
+    static final int F_ORIENTATION = 3;
+    static final int F_CONTRACT_OPERATE = 4;
+    static final int F_PB_ENABLED = 5;
+    static final int F_VOLTAGE = 6;
+    static final int F_CURRENT = 7;
+    static final int F_POWER = 8;
+    static final int F_MAXPOWER = 9;
+    static final int F_THERMAL = 10;
+    static final int F_SYS_PWR = 11;
+    static final int FIELDS = 12;
+    static final int FIRST_FRAME_FIELD = F_SYS_PWR;
+
+    private static final String[] FIELD_NAMES = {
+            "attached", "negotiated", "cap_mismatch", "orientation", "contract_operate", "pb_enabled",
+            "voltage", "current", "power", "maxpower", "thermal", "sys_pwr",
+    };
+
+    //Opcodes. LOAD_* and CHANGED take one operand.
+    static final int OP_LOAD_FIELD = 0;
+    static final int OP_LOAD_CONST = 1;
+    static final int OP_CHANGED = 2;
+    static final int OP_ADD = 3;
+    static final int OP_SUB = 4;
+    static final int OP_MUL = 5;
+    static final int OP_GT = 6;
+    static final int OP_GE = 7;
+    static final int OP_LT = 8;
+    static final int OP_LE = 9;
+    static final int OP_EQ = 10;
+    static final int OP_NE = 11;
+    static final int OP_AND = 12;
+    static final int OP_OR = 13;
+    static final int OP_NOT = 14;
+    static final int OP_NEG = 15;
+
+    final int[] code;
+    final float[] consts;
+    final int[] ruleStart;  //code range of each rule
+    final int[] ruleEnd;
+    final long[] raiseNs;   //"for"
+    final long[] clearNs;   //"clear"
+    final boolean[] perPort;
+    final int maxStack;
+    private final String[] mNames;
+
+    private AlertRules(int[] code, float[] consts, int[] ruleStart, int[] ruleEnd, long[] raiseNs, long[] clearNs,
+                       boolean[] perPort, int maxStack, String[] names) {
+        this.code = code;
+        this.consts = consts;
+        this.ruleStart = ruleStart;
+        this.ruleEnd = ruleEnd;
+        this.raiseNs = raiseNs;
+        this.clearNs = clearNs;
+        this.perPort = perPort;
+        this.maxStack = maxStack;
+        mNames = names;
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    String getName(int rule) {
+        return mNames[rule];
+    }
+
+    /**
+     * @throws IllegalArgumentException on syntax errors (the message has the line number)
+     */
+    static AlertRules compile(String text) {
+        Compiler c = new Compiler();
+        String[] lines = text.split("\n");
+        for (int l = 0; l < lines.length; ++l) {
+            String line = lines[l];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                c.rule(line);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (l + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return c.build();
+    }
+
+    private static final class Compiler {
+        private int[] mCode = new int[64];
+        private int mCodeSize;
+        private float[] mConsts = new float[16];
+        private int mConstsSize;
+        private final ArrayList<String> mNames = new ArrayList<>();
+        private final ArrayList<long[]> mRules = new ArrayList<>(); //start, end, raise, clear, perPort
+        private int mMaxStack;
+
+        //Current rule
+        private String[] mTokens;
+        private int mPos;
+        private int mDepth;
+        private boolean mPortField;
+
+        void rule(String line) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("expected 'name: condition'");
+            }
+            String name = line.substring(0, colon).trim();
+            if (mNames.contains(name)) {
+                throw new IllegalArgumentException("duplicate rule " + name);
+            }
+            mTokens = tokenize(line.substring(colon + 1));
+            mPos = 0;
+            mDepth = 0;
+            mPortField = false;
+            int start = mCodeSize;
+            or();
+            long raise = 0;
+            long clear = 0;
+            while (mPos < mTokens.length) {
+                String t = next();
+                if ("for".equals(t)) {
+                    raise = duration(next());
+                } else if ("clear".equals(t)) {
+                    clear = duration(next());
+                } else {
+                    throw new IllegalArgumentException("unexpected '" + t + "'");
+                }
+            }
+            mNames.add(name);
+            mRules.add(new long[] { start, mCodeSize, raise, clear, mPortField ? 1 : 0 });
+        }
+
+        AlertRules build() {
+            int n = mNames.size();
+            int[] start = new int[n];
+            int[] end = new int[n];
+            long[] raise = new long[n];
+            long[] clear = new long[n];
+            boolean[] perPort = new boolean[n];
+            for (int r = 0; r < n; ++r) {
+                long[] rule = mRules.get(r);
+                start[r] = (int)rule[0];
+                end[r] = (int)rule[1];
+                raise[r] = rule[2];
+                clear[r] = rule[3];
+                perPort[r] = rule[4] != 0;
+            }
+            return new AlertRules(Arrays.copyOf(mCode, mCodeSize), Arrays.copyOf(mConsts, mConstsSize),
+                    start, end, raise, clear, perPort, mMaxStack, mNames.toArray(new String[n]));
+        }
+
+        //or := and ('or' and)*
+        private void or() {
+            and();
+            while (accept("or")) {
+                and();
+                emit(OP_OR, -1);
+            }
+        }
+
+        //and := not ('and' not)*
+        private void and() {
+            not();
+            while (accept("and")) {
+                not();
+                emit(OP_AND, -1);
+            }
+        }
+
+        //not := 'not' not | comparison
+        private void not() {
+            if (accept("not")) {
+                not();
+                emit(OP_NOT, 0);
+            } else {
+                comparison();
+            }
+        }
+
+        //comparison := sum (op sum)?
+        private void comparison() {
+            sum();
+            int op = -1;
+            String t = peek();
+            if (">".equals(t)) op = OP_GT;
+            else if (">=".equals(t)) op = OP_GE;
+            else if ("<".equals(t)) op = OP_LT;
+            else if ("<=".equals(t)) op = OP_LE;
+            else if ("==".equals(t)) op = OP_EQ;
+            else if ("!=".equals(t)) op = OP_NE;
+            if (op >= 0) {
+                mPos++;
+                sum();
+                emit(op, -1);
+            }
+        }
+
+        //sum := product (('+' | '-') product)*
+        private void sum() {
+            product();
+            while (true) {
+                if (accept("+")) {
+                    product();
+                    emit(OP_ADD, -1);
+                } else if (accept("-")) {
+                    product();
+                    emit(OP_SUB, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        //product := atom ('*' atom)*
+        private void product() {
+            atom();
+            while (accept("*")) {
+                atom();
+                emit(OP_MUL, -1);
+            }
+        }
+
+        //atom := number | field | constant | 'changed' field | '-' atom | '(' or ')'
+        private void atom() {
+            String t = next();
+            if ("(".equals(t)) {
+                or();
+                expect(")");
+            } else if ("-".equals(t)) {
+                atom();
+                emit(OP_NEG, 0);
+            } else if ("changed".equals(t)) {
+                emit(OP_CHANGED, 1, field(next()));
+            } else if (Character.isDigit(t.charAt(0)) || t.charAt(0) == '.') {
+                emit(OP_LOAD_CONST, 1, constant(number(t)));
+            } else if ("NORMAL".equals(t)) {
+                emit(OP_LOAD_CONST, 1, constant(ThermalState.NORMAL.ordinal()));
+            } else if ("WARNING".equals(t)) {
+                emit(OP_LOAD_CONST, 1, constant(ThermalState.WARNING.ordinal()));
+            } else if ("SHUTDOWN".equals(t)) {
+                emit(OP_LOAD_CONST, 1, constant(ThermalState.SHUTDOWN.ordinal()));
+            } else {
+                emit(OP_LOAD_FIELD, 1, field(t));
+            }
+        }
+
+        private int field(String name) {
+            for (int f = 0; f < FIELD_NAMES.length; ++f) {
+                if (FIELD_NAMES[f].equals(name)) {
+                    if (f < FIRST_FRAME_FIELD) {
+                        mPortField = true;
+                    }
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("unknown field '" + name + "'");
+        }
+
+        private int constant(float value) {
+            for (int c = 0; c < mConstsSize; ++c) {
+                if (Float.compare(mConsts[c], value) == 0) {
+                    return c;
+                }
+            }
+            if (mConstsSize == mConsts.length) {
+                mConsts = Arrays.copyOf(mConsts, mConstsSize * 2);
+            }
+            mConsts[mConstsSize] = value;
+            return mConstsSize++;
+        }
+
+        private void emit(int op, int stackDelta) {
+            grow(1);
+            mCode[mCodeSize++] = op;
+            stack(stackDelta);
+        }
+
+        private void emit(int op, int stackDelta, int operand) {
+            grow(2);
+            mCode[mCodeSize++] = op;
+            mCode[mCodeSize++] = operand;
+            stack(stackDelta);
+        }
+
+        private void grow(int n) {
+            if (mCodeSize + n > mCode.length) {
+                mCode = Arrays.copyOf(mCode, mCode.length * 2);
+            }
+        }
+
+        private void stack(int delta) {
+            mDepth += delta;
+            if (mDepth > mMaxStack) {
+                mMaxStack = mDepth;
+            }
+        }
+
+        private String peek() {
+            return (mPos < mTokens.length) ? mTokens[mPos] : null;
+        }
+
+        private String next() {
+            if (mPos >= mTokens.length) {
+                throw new IllegalArgumentException("unexpected end of rule");
+            }
+            return mTokens[mPos++];
+        }
+
+        private boolean accept(String token) {
+            if (token.equals(peek())) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("expected '" + token + "'");
+            }
+        }
+    }
+
+    private static float number(String t) {
+        try {
+            return Float.parseFloat(t);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number '" + t + "'");
+        }
+    }
+
+    static long duration(String t) {
+        String s = t.toLowerCase(Locale.US);
+        long unit;
+        int suffix;
+        if (s.endsWith("ms")) {
+            unit = 1000L * 1000;
+            suffix = 2;
+        } else if (s.endsWith("s")) {
+            unit = 1000L * 1000 * 1000;
+            suffix = 1;
+        } else if (s.endsWith("m")) {
+            unit = 60L * 1000 * 1000 * 1000;
+            suffix = 1;
+        } else if (s.endsWith("h")) {
+            unit = 3600L * 1000 * 1000 * 1000;
+            suffix = 1;
+        } else {
+            throw new IllegalArgumentException("duration '" + t + "' needs a unit (ms, s, m, h)");
+        }
+        String value = s.substring(0, s.length() - suffix);
+        try {
+            return Math.round(Double.parseDouble(value) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad duration '" + t + "'");
+        }
+    }
+
+    private static String[] tokenize(String s) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+                int start = i;
+                while (i < s.length() && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_' || s.charAt(i) == '.')) {
+                    i++;
+                }
+                tokens.add(s.substring(start, i));
+            } else if ((c == '>' || c == '<' || c == '=' || c == '!') && i + 1 < s.length() && s.charAt(i + 1) == '=') {
+                tokens.add(s.substring(i, i + 2));
+                i += 2;
+            } else if ("()*+-<>".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                throw new IllegalArgumentException("unexpected '" + c + "'");
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}
@@ -0,0 +1,164 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.PrintWriter;
+
+/**
+ * Preallocated buffer of raw PORT_PARAMS samples of one port taken at high rate
+ * (see {@link BurstSampler}).
+ */
+class BurstCapture {
+    static final int TRIGGER_MANUAL = 0;
+    static final int TRIGGER_ATTACH = 1;
+    static final int TRIGGER_DETACH = 2;
+    static final int TRIGGER_CAP_MISMATCH = 3;
+    static final int TRIGGER_THERMAL = 4;
+
+    private static final int SAMPLE_SIZE = HubFrame.PORT_PARAMS_SIZE;
+
+    private final long[] mTimestamps;
+    private final byte[] mData;
+    //PORT_POWER_ALLOCATION of the last regular poll, needed to decode the samples
+    private final byte[] mPowerAllocation = new byte[32];
+    private int mPort;
+    private int mTrigger;
+    private int mCount;
+    private long mEndNs;
+    private boolean mFailed;
+
+    BurstCapture(int capacity) {
+        mTimestamps = new long[capacity];
+        mData = new byte[capacity * SAMPLE_SIZE];
+    }
+
+    void start(int port, int trigger, byte[] powerAllocation) {
+        mPort = port;
+        mTrigger = trigger;
+        mCount = 0;
+        mEndNs = 0;
+        mFailed = false;
+        System.arraycopy(powerAllocation, 0, mPowerAllocation, 0, HubFrame.PORT_POWER_ALLOCATION_SIZE);
+    }
+
+    /**
+     * @return false if the buffer is full (the sample is dropped or was the last one that fit)
+     */
+    boolean add(long timestampNs, byte[] portParams) {
+        if (mCount >= mTimestamps.length) {
+            return false;
+        }
+        mTimestamps[mCount] = timestampNs;
+        System.arraycopy(portParams, 0, mData, mCount * SAMPLE_SIZE, SAMPLE_SIZE);
+        mCount++;
+        return mCount < mTimestamps.length;
+    }
+
+    void finish(long timestampNs) {
+        mEndNs = timestampNs;
+    }
+
+    //Aborted on read errors. The samples taken so far are kept.
+    void fail(long timestampNs) {
+        mEndNs = timestampNs;
+        mFailed = true;
+    }
+
+    boolean isFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Copy of the samples taken, sized to fit.
+     */
+    BurstCapture copy() {
+        BurstCapture c = new BurstCapture(Math.max(mCount, 1));
+        c.mPort = mPort;
+        c.mTrigger = mTrigger;
+        c.mCount = mCount;
+        c.mEndNs = mEndNs;
+        c.mFailed = mFailed;
+        System.arraycopy(mPowerAllocation, 0, c.mPowerAllocation, 0, mPowerAllocation.length);
+        System.arraycopy(mTimestamps, 0, c.mTimestamps, 0, mCount);
+        System.arraycopy(mData, 0, c.mData, 0, mCount * SAMPLE_SIZE);
+        return c;
+    }
+
+    int getPort() {
+        return mPort;
+    }
+
+    int getTrigger() {
+        return mTrigger;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    long getTimestampNs(int sample) {
+        return mTimestamps[sample];
+    }
+
+    long getDurationNs() {
+        return (mCount == 0) ? 0 : mTimestamps[mCount - 1] - mTimestamps[0];
+    }
+
+    long getEndNs() {
+        return mEndNs;
+    }
+
+    //Achieved sample rate (Hz)
+    float getSampleRate() {
+        long d = getDurationNs();
+        return (d <= 0) ? 0 : (mCount - 1) * 1e9f / d;
+    }
+
+    /**
+     * Decode a sample. Thermal state is not sampled; out.thermal is left as is.
+     * @param sampleBuff scratch buffer of at least PORT_PARAMS_SIZE bytes
+     */
+    void decode(int sample, byte[] sampleBuff, HubFrame.PortFrame out) {
+        System.arraycopy(mData, sample * SAMPLE_SIZE, sampleBuff, 0, SAMPLE_SIZE);
+        out.decode(sampleBuff, mPowerAllocation, out.thermal);
+    }
+
+    static String triggerName(int trigger) {
+        switch (trigger) {
+            case TRIGGER_MANUAL: return "manual";
+            case TRIGGER_ATTACH: return "attach";
+            case TRIGGER_DETACH: return "detach";
+            case TRIGGER_CAP_MISMATCH: return "cap_mismatch";
+            case TRIGGER_THERMAL: return "thermal";
+            default: return "unknown";
+        }
+    }
+
+    /**
+     * Export as CSV. Time is relative to the first sample.
+     */
+    void writeCsv(PrintWriter pw) {
+        pw.println("# port=" + mPort + " trigger=" + triggerName(mTrigger) + " samples=" + mCount
+                + " rate=" + getSampleRate() + "Hz" + (mFailed ? " failed" : ""));
+        pw.println("t_us,raw,attached,negotiated,contract_operate,cap_mismatch,v_negotiated,i_negotiated,v_operational,voltage,current");
+        byte[] buff = new byte[SAMPLE_SIZE];
+        HubFrame.PortFrame f = new HubFrame.PortFrame();
+        for (int s = 0; s < mCount; ++s) {
+            decode(s, buff, f);
+            pw.println(((mTimestamps[s] - mTimestamps[0]) / 1000) + ","
+                    + HubManager.bytesToHex(buff, SAMPLE_SIZE) + ","
+                    + (f.attached ? 1 : 0) + ","
+                    + (f.negotiated ? 1 : 0) + ","
+                    + (f.contractOperate ? 1 : 0) + ","
+                    + (f.capMismatch ? 1 : 0) + ","
+                    + f.negotiatedVoltage + ","
+                    + f.negotiatedCurrent + ","
+                    + f.operationalVoltage + ","
+                    + f.voltage + ","
+                    + f.current);
+        }
+        pw.flush();
+    }
+}
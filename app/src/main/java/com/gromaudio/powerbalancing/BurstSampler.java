@@ -0,0 +1,323 @@
+package com.gromaudio.powerbalancing;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Burst capture: polls PORT_PARAMS of the requested port(s) back to back, as fast as the bus
+ * allows, for a configurable window, into preallocated {@link BurstCapture} buffers.
+ *
+ * Runs on its own thread so the regular HubManager poll keeps its cadence for both ports: a
+ * regular transfer waits at most for one burst transfer (a few hundred us).
+ * Each port has a capture being filled and the last completed one (double buffering).
+ *
+ * Armed ports (detached, polled at full rate) are watched every WATCH_PERIOD_MS, keeping the last
+ * PRE_TRIGGER samples. When one of them gets attached, a capture starts right away with those
+ * samples in front of it, so the attach itself is timed to one watch period.
+ */
+class BurstSampler {
+    private static final String TAG = "PB:BurstSampler";
+
+    static final int DEFAULT_WINDOW_MS = 2000;
+    private static final int CAPACITY = 8192; //samples per port
+    private static final int MAX_READ_ERRORS = 3; //consecutive, then the capture is aborted
+    private static final int WATCH_PERIOD_MS = 10;
+    private static final int PRE_TRIGGER = 16; //samples of an armed port kept in front of its capture
+    private static final int[] PORT_PARAMS_ADDR = { HubManager.PDPB_P1_PORT_PARAMS, HubManager.PDPB_P3_PORT_PARAMS };
+
+    interface IBurstListener {
+        //Called on the HubManager handler thread with a copy the listener may keep
+        void onBurstCaptured(BurstCapture capture);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mWorker;
+    private final Handler mCallbackHandler;
+    private volatile IBurstListener mListener;
+
+    private final BurstCapture[] mActive = new BurstCapture[HubFrame.PORTS];
+    private final BurstCapture[] mCompleted = new BurstCapture[HubFrame.PORTS];
+    private final boolean[] mCapturing = new boolean[HubFrame.PORTS];   //worker thread only
+    private final long[] mDeadlineNs = new long[HubFrame.PORTS];        //worker thread only
+    private final int[] mReadErrors = new int[HubFrame.PORTS];          //worker thread only
+    private final byte[][] mPowerAllocation = new byte[HubFrame.PORTS][32];
+    private final int[] mTrigger = new int[HubFrame.PORTS];
+    private final byte[] mSampleBuff = new byte[32];
+
+    //Pre-trigger ring of the armed ports (worker thread only)
+    private final boolean[] mWatching = new boolean[HubFrame.PORTS];
+    private final long[][] mRingTimestamps = new long[HubFrame.PORTS][PRE_TRIGGER];
+    private final byte[][][] mRingData = new byte[HubFrame.PORTS][PRE_TRIGGER][HubFrame.PORT_PARAMS_SIZE];
+    private final int[] mRingCount = new int[HubFrame.PORTS];
+    private final int[] mRingHead = new int[HubFrame.PORTS]; //next slot
+
+    private final AtomicInteger mPending = new AtomicInteger(); //bit per port
+    private final AtomicInteger mArmed = new AtomicInteger(); //bit per port
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+    private volatile SharedConnection mConnection;
+    private volatile long mWindowNs = DEFAULT_WINDOW_MS * 1000L * 1000;
+
+    BurstSampler(Handler callbackHandler) {
+        mCallbackHandler = callbackHandler;
+        for (int p = 0; p < HubFrame.PORTS; ++p) {
+            mActive[p] = new BurstCapture(CAPACITY);
+            mCompleted[p] = new BurstCapture(CAPACITY);
+        }
+        mThread = new HandlerThread("PB:BurstSampler", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorker = new Handler(mThread.getLooper());
+    }
+
+    void close() {
+        mConnection = null;
+        mThread.quitSafely();
+    }
+
+    /**
+     * Connection to use. null aborts running captures.
+     */
+    void setConnection(SharedConnection connection) {
+        mConnection = connection;
+    }
+
+    void setListener(IBurstListener listener) {
+        mListener = listener;
+    }
+
+    void setWindow(int ms) {
+        mWindowNs = ms * 1000L * 1000;
+    }
+
+    /**
+     * Start a capture of the port unless one is already running for it.
+     * @param port 1 or 2
+     * @param powerAllocation last PORT_POWER_ALLOCATION of the port (to decode the samples)
+     */
+    void request(int port, int trigger, byte[] powerAllocation) {
+        int idx = port - 1;
+        synchronized (mPowerAllocation[idx]) {
+            System.arraycopy(powerAllocation, 0, mPowerAllocation[idx], 0, HubFrame.PORT_POWER_ALLOCATION_SIZE);
+            mTrigger[idx] = trigger;
+        }
+        int pending;
+        do {
+            pending = mPending.get();
+        } while (!mPending.compareAndSet(pending, pending | (1 << idx)));
+        if (mRunning.compareAndSet(false, true)) {
+            mWorker.post(mLoop);
+        }
+    }
+
+    /**
+     * Watch the (detached) port and capture its next attach.
+     * Disarmed once the attach has been captured, when the connection goes away, or by disarm().
+     * @param port 1 or 2
+     * @param powerAllocation last PORT_POWER_ALLOCATION of the port (to decode the samples)
+     */
+    void arm(int port, byte[] powerAllocation) {
+        int idx = port - 1;
+        synchronized (mPowerAllocation[idx]) {
+            System.arraycopy(powerAllocation, 0, mPowerAllocation[idx], 0, HubFrame.PORT_POWER_ALLOCATION_SIZE);
+        }
+        if (!setBit(mArmed, idx, true)) {
+            return;
+        }
+        if (mRunning.compareAndSet(false, true)) {
+            mWorker.post(mLoop);
+        }
+    }
+
+    void disarm(int port) {
+        setBit(mArmed, port - 1, false);
+    }
+
+    //@return true if the bit changed
+    private static boolean setBit(AtomicInteger bits, int idx, boolean set) {
+        int prev;
+        int next;
+        do {
+            prev = bits.get();
+            next = set ? (prev | (1 << idx)) : (prev & ~(1 << idx));
+        } while (prev != next && !bits.compareAndSet(prev, next));
+        return prev != next;
+    }
+
+    /**
+     * Export the last completed capture of the port as CSV.
+     * Holds the capture (not the bus) while writing, so keep the writer fast.
+     */
+    void writeCompleted(int port, PrintWriter pw) {
+        synchronized (mCompleted) {
+            BurstCapture c = mCompleted[port - 1];
+            if (c.getCount() == 0) {
+                pw.println("# port=" + port + ": no capture");
+            } else {
+                c.writeCsv(pw);
+            }
+        }
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                int pending = mPending.getAndSet(0);
+                int armed = mArmed.get();
+                boolean any = false;
+                for (int p = 0; p < HubFrame.PORTS; ++p) {
+                    if ((pending & (1 << p)) != 0 && !mCapturing[p]) {
+                        int trigger;
+                        synchronized (mPowerAllocation[p]) {
+                            trigger = mTrigger[p];
+                        }
+                        startCapture(p, trigger);
+                    }
+                    boolean watching = !mCapturing[p] && (armed & (1 << p)) != 0;
+                    if (watching && !mWatching[p]) {
+                        //Samples of an earlier watch are too old to be in front of an attach
+                        mRingCount[p] = 0;
+                    }
+                    mWatching[p] = watching;
+                    any |= mCapturing[p] || watching;
+                }
+                if (!any) {
+                    mRunning.set(false);
+                    //request() or arm() may have raced with us
+                    if ((mPending.get() != 0 || mArmed.get() != 0) && mRunning.compareAndSet(false, true)) {
+                        continue;
+                    }
+                    return;
+                }
+
+                //Lease the connection for this round, so it isn't closed in the middle of a transfer
+                SharedConnection shared = mConnection;
+                UsbDeviceConnection connection = (shared != null) ? shared.acquire() : null;
+                if (connection == null) {
+                    //Re-armed by HubManager once it polls again
+                    mArmed.set(0);
+                }
+                for (int p = 0; p < HubFrame.PORTS; ++p) {
+                    if (mWatching[p]) {
+                        if (connection != null) {
+                            watch(p, connection);
+                        }
+                        continue;
+                    }
+                    if (!mCapturing[p]) {
+                        continue;
+                    }
+                    if (connection == null) {
+                        Log.d(TAG, "Connection closed, abort port " + (p + 1) + " capture");
+                        completeCapture(p, SystemClock.elapsedRealtimeNanos(), false);
+                        continue;
+                    }
+                    int res = HubManager.readHfcMemory(connection, PORT_PARAMS_ADDR[p],
+                            HubFrame.PORT_PARAMS_SIZE, mSampleBuff);
+                    long now = SystemClock.elapsedRealtimeNanos();
+                    if (res < 0) {
+                        //Don't keep hammering a hub that doesn't answer
+                        if (++mReadErrors[p] >= MAX_READ_ERRORS) {
+                            Log.e(TAG, "Port " + (p + 1) + " capture aborted: read error " + res);
+                            completeCapture(p, now, true);
+                        }
+                        continue;
+                    }
+                    mReadErrors[p] = 0;
+                    if (!mActive[p].add(now, mSampleBuff) || now >= mDeadlineNs[p]) {
+                        completeCapture(p, now, false);
+                    }
+                }
+                if (connection != null) {
+                    shared.release();
+                }
+
+                //Only watching: no need to run at bus speed. New requests wait for the next round.
+                boolean capturing = false;
+                for (int p = 0; p < HubFrame.PORTS; ++p) {
+                    capturing |= mCapturing[p];
+                }
+                if (connection != null && !capturing) {
+                    mWorker.postDelayed(this, WATCH_PERIOD_MS);
+                    return;
+                }
+            }
+        }
+    };
+
+    private void watch(int p, UsbDeviceConnection connection) {
+        int res = HubManager.readHfcMemory(connection, PORT_PARAMS_ADDR[p], HubFrame.PORT_PARAMS_SIZE, mSampleBuff);
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (res < 0) {
+            return;
+        }
+        boolean wasDetached = mRingCount[p] > 0
+                && (mRingData[p][(mRingHead[p] + PRE_TRIGGER - 1) % PRE_TRIGGER][0] & 0x01) == 0;
+        int head = mRingHead[p];
+        mRingTimestamps[p][head] = now;
+        System.arraycopy(mSampleBuff, 0, mRingData[p][head], 0, HubFrame.PORT_PARAMS_SIZE);
+        mRingHead[p] = (head + 1) % PRE_TRIGGER;
+        if (mRingCount[p] < PRE_TRIGGER) {
+            mRingCount[p]++;
+        }
+        if (!wasDetached || (mSampleBuff[0] & 0x01) == 0) {
+            return;
+        }
+
+        //Attached: capture from the samples before it
+        setBit(mArmed, p, false);
+        mWatching[p] = false;
+        startCapture(p, BurstCapture.TRIGGER_ATTACH);
+        int count = mRingCount[p];
+        for (int i = 0; i < count; ++i) {
+            int slot = (mRingHead[p] + PRE_TRIGGER - count + i) % PRE_TRIGGER;
+            mActive[p].add(mRingTimestamps[p][slot], mRingData[p][slot]);
+        }
+        mRingCount[p] = 0;
+    }
+
+    private void startCapture(int p, int trigger) {
+        byte[] powerAllocation = mPowerAllocation[p];
+        synchronized (powerAllocation) {
+            mActive[p].start(p + 1, trigger, powerAllocation);
+        }
+        mCapturing[p] = true;
+        mReadErrors[p] = 0;
+        mDeadlineNs[p] = SystemClock.elapsedRealtimeNanos() + mWindowNs;
+        Log.d(TAG, "Port " + (p + 1) + " burst capture started (" + BurstCapture.triggerName(trigger) + ")");
+    }
+
+    private void completeCapture(int p, long now, boolean failed) {
+        mCapturing[p] = false;
+        BurstCapture done = mActive[p];
+        if (failed) {
+            done.fail(now);
+        } else {
+            done.finish(now);
+        }
+        synchronized (mCompleted) {
+            mActive[p] = mCompleted[p];
+            mCompleted[p] = done;
+        }
+        Log.d(TAG, String.format("Port %d burst capture %s: %d samples, %.1f Hz", p + 1, failed ? "failed" : "done",
+                done.getCount(), done.getSampleRate()));
+        final IBurstListener listener = mListener;
+        if (listener != null) {
+            //done is refilled by the next capture of the port after the swap
+            final BurstCapture copy = done.copy();
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBurstCaptured(copy);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Headless fleet analytics over {@link CaptureFile}s. Runs on a workstation JVM, not in the app
+ * (CaptureAnalyticsTool in the unit test sources):
+ *
+ *   ./gradlew :app:captureAnalytics -Pcaptures=capture1.pbc,capture2.pbc
+ *
+ * Every file is split into ranges of records decoded in parallel (fork/join) with the same
+ * HubFrame.decode() as the app. Each leaf streams its range through a per-thread buffer into its
+ * own {@link CaptureStats}; results are merged on join, then grouped by firmware.
+ * The analytics only use fields read on every poll, so FLAG_PARTIAL records are accounted too.
+ */
+class CaptureAnalytics {
+    static final int DEFAULT_LEAF_RECORDS = 64 * 1024;
+
+    private final ForkJoinPool mPool;
+    private final int mLeafRecords;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<>();
+
+    //Carries an IOException out of a task
+    private static final class ScanException extends RuntimeException {
+        ScanException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    CaptureAnalytics(ForkJoinPool pool, int leafRecords) {
+        mPool = pool;
+        mLeafRecords = leafRecords;
+    }
+
+    /**
+     * @return stats per firmware (sorted)
+     */
+    Map<String, CaptureStats> analyze(List<File> files) throws IOException {
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            List<RangeTask> tasks = new ArrayList<>();
+            List<String> firmwares = new ArrayList<>();
+            for (File f : files) {
+                FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+                channels.add(channel);
+                CaptureFile.Header header = CaptureFile.readHeader(channel);
+                tasks.add(new RangeTask(channel, 0, header.records));
+                firmwares.add(header.firmware);
+            }
+            final List<CaptureStats> results;
+            try {
+                results = mPool.invoke(new RecursiveTask<List<CaptureStats>>() {
+                    @Override
+                    protected List<CaptureStats> compute() {
+                        invokeAll(tasks);
+                        List<CaptureStats> stats = new ArrayList<>(tasks.size());
+                        for (RangeTask t : tasks) {
+                            stats.add(t.join());
+                        }
+                        return stats;
+                    }
+                });
+            } catch (ScanException e) {
+                throw (IOException)e.getCause();
+            }
+            Map<String, CaptureStats> byFirmware = new TreeMap<>();
+            for (int i = 0; i < results.size(); ++i) {
+                CaptureStats s = byFirmware.get(firmwares.get(i));
+                if (s == null) {
+                    byFirmware.put(firmwares.get(i), results.get(i));
+                } else {
+                    s.merge(results.get(i));
+                }
+            }
+            return byFirmware;
+        } finally {
+            for (FileChannel c : channels) {
+                c.close();
+            }
+        }
+    }
+
+    private final class RangeTask extends RecursiveTask<CaptureStats> {
+        private final FileChannel mChannel;
+        private final long mStart;
+        private final long mEnd;
+
+        RangeTask(FileChannel channel, long start, long end) {
+            mChannel = channel;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected CaptureStats compute() {
+            if (mEnd - mStart <= mLeafRecords) {
+                try {
+                    return scan(mChannel, mStart, mEnd);
+                } catch (IOException e) {
+                    throw new ScanException(e);
+                }
+            }
+            long mid = (mStart + mEnd) >>> 1;
+            RangeTask right = new RangeTask(mChannel, mid, mEnd);
+            right.fork();
+            CaptureStats left = new RangeTask(mChannel, mStart, mid).compute();
+            left.merge(right.join());
+            return left;
+        }
+    }
+
+    /**
+     * Decode records [start, end). The record before start (if any) only provides the
+     * previous state, so ranges add up to the same result as one sequential scan.
+     */
+    CaptureStats scan(FileChannel channel, long start, long end) throws IOException {
+        CaptureStats stats = new CaptureStats();
+        long first = Math.max(0, start - 1);
+        int count = (int)(end - first);
+        int size = count * CaptureFile.RECORD_SIZE;
+        byte[] buff = sBuffer.get();
+        if (buff == null || buff.length < size) {
+            buff = new byte[size];
+            sBuffer.set(buff);
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buff, 0, size);
+        long position = CaptureFile.HEADER_SIZE + first * CaptureFile.RECORD_SIZE;
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new IOException("truncated capture");
+            }
+        }
+
+        byte[] thermal = new byte[HubFrame.THERMAL_PORT_STATUS_SIZE];
+        byte[] sysConfig = new byte[HubFrame.PB_SYS_CONFIG_SIZE];
+        byte[] p1Params = new byte[HubFrame.PORT_PARAMS_SIZE];
+        byte[] p1Power = new byte[HubFrame.PORT_POWER_ALLOCATION_SIZE];
+        byte[] p3Params = new byte[HubFrame.PORT_PARAMS_SIZE];
+        byte[] p3Power = new byte[HubFrame.PORT_POWER_ALLOCATION_SIZE];
+        HubFrame prev = new HubFrame();
+        HubFrame cur = new HubFrame();
+        boolean havePrev = false;
+        for (int r = 0; r < count; ++r) {
+            int off = r * CaptureFile.RECORD_SIZE;
+            System.arraycopy(buff, off + CaptureFile.OFF_THERMAL, thermal, 0, thermal.length);
+            System.arraycopy(buff, off + CaptureFile.OFF_SYS_CONFIG, sysConfig, 0, sysConfig.length);
+            System.arraycopy(buff, off + CaptureFile.OFF_P1_PARAMS, p1Params, 0, p1Params.length);
+            System.arraycopy(buff, off + CaptureFile.OFF_P1_POWER, p1Power, 0, p1Power.length);
+            System.arraycopy(buff, off + CaptureFile.OFF_P3_PARAMS, p3Params, 0, p3Params.length);
+            System.arraycopy(buff, off + CaptureFile.OFF_P3_POWER, p3Power, 0, p3Power.length);
+            cur.decode(CaptureFile.getTimestamp(buff, off), thermal, sysConfig, p1Params, p1Power, p3Params, p3Power);
+            if (first + r >= start) {
+                stats.add(havePrev ? prev : null, cur);
+            }
+            HubFrame t = prev;
+            prev = cur;
+            cur = t;
+            havePrev = true;
+        }
+        return stats;
+    }
+}
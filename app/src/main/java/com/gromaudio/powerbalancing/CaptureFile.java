@@ -0,0 +1,173 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Capture file of raw hub polls, for offline analysis ({@link CaptureAnalytics}).
+ *
+ * Fixed HEADER_SIZE header (big endian: magic, version, record size, firmware as UTF, zero
+ * padded) followed by fixed-size records holding the register bytes as read by
+ * CMD_MEMORY_READ (little endian), so record i is at HEADER_SIZE + i * RECORD_SIZE:
+ *
+ *   0  timestamp (ns, elapsedRealtimeNanos)   8
+ *   8  THERMAL_PORT_STATUS                    2
+ *  10  PB_SYS_CONFIG                          4
+ *  14  P1_PORT_PARAMS                         8
+ *  22  P1_PORT_POWER_ALLOCATION               4
+ *  26  P3_PORT_PARAMS                         8
+ *  34  P3_PORT_POWER_ALLOCATION               4
+ *  38  flags                                  1
+ *  39  reserved                               1
+ *
+ * FLAG_PARTIAL: low-power poll, only THERMAL_PORT_STATUS and PORT_PARAMS were read. The power
+ * allocations and PB_SYS_CONFIG are those of an earlier poll.
+ */
+class CaptureFile {
+    static final int MAGIC = 0x50424346; //"PBCF"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 40;
+
+    static final int OFF_TIMESTAMP = 0;
+    static final int OFF_THERMAL = 8;
+    static final int OFF_SYS_CONFIG = OFF_THERMAL + HubFrame.THERMAL_PORT_STATUS_SIZE;
+    static final int OFF_P1_PARAMS = OFF_SYS_CONFIG + HubFrame.PB_SYS_CONFIG_SIZE;
+    static final int OFF_P1_POWER = OFF_P1_PARAMS + HubFrame.PORT_PARAMS_SIZE;
+    static final int OFF_P3_PARAMS = OFF_P1_POWER + HubFrame.PORT_POWER_ALLOCATION_SIZE;
+    static final int OFF_P3_POWER = OFF_P3_PARAMS + HubFrame.PORT_PARAMS_SIZE;
+    static final int OFF_FLAGS = OFF_P3_POWER + HubFrame.PORT_POWER_ALLOCATION_SIZE;
+
+    static final int FLAG_PARTIAL = 0x01;
+
+    //Encoded (modified UTF-8) bytes of the firmware string: the header less the 3 ints and the UTF length
+    static final int MAX_FIRMWARE_BYTES = HEADER_SIZE - 14;
+
+    static final class Header {
+        final String firmware;
+        final long records;
+
+        Header(String firmware, long records) {
+            this.firmware = firmware;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Buffered record writer. Not thread safe.
+     */
+    static final class Writer {
+        private final OutputStream mOut;
+        private final byte[] mRecord = new byte[RECORD_SIZE];
+
+        Writer(OutputStream out, String firmware) throws IOException {
+            mOut = new BufferedOutputStream(out);
+            mOut.write(header(firmware));
+        }
+
+        void write(long timestampNs, int flags, byte[] thermal, byte[] sysConfig,
+                   byte[] p1Params, byte[] p1Power, byte[] p3Params, byte[] p3Power) throws IOException {
+            encode(mRecord, 0, timestampNs, flags, thermal, sysConfig, p1Params, p1Power, p3Params, p3Power);
+            mOut.write(mRecord);
+        }
+
+        //A record encoded by encode()
+        void writeRecord(byte[] record) throws IOException {
+            mOut.write(record, 0, RECORD_SIZE);
+        }
+
+        void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    static byte[] header(String firmware) throws IOException {
+        firmware = truncateUtf(firmware, MAX_FIRMWARE_BYTES);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(RECORD_SIZE);
+        out.writeUTF(firmware);
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(bytes.toByteArray(), 0, header, 0, bytes.size());
+        return header;
+    }
+
+    /**
+     * Longest prefix that DataOutputStream.writeUTF() encodes in at most maxBytes (plus the
+     * length), without splitting a surrogate pair.
+     */
+    static String truncateUtf(String s, int maxBytes) {
+        if (s == null) {
+            return "";
+        }
+        int bytes = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            bytes += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF) ? 2 : 3;
+            if (bytes > maxBytes) {
+                if (i > 0 && Character.isHighSurrogate(s.charAt(i - 1))) {
+                    --i;
+                }
+                return s.substring(0, i);
+            }
+        }
+        return s;
+    }
+
+    static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate(HEADER_SIZE);
+        while (buff.hasRemaining()) {
+            if (channel.read(buff, buff.position()) < 0) {
+                throw new IOException("truncated header");
+            }
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buff.array()));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a capture file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported capture version " + version);
+        }
+        int recordSize = in.readInt();
+        if (recordSize != RECORD_SIZE) {
+            throw new IOException("unexpected record size " + recordSize);
+        }
+        String firmware = in.readUTF();
+        //A partial record at the end (capture interrupted) is ignored
+        return new Header(firmware, (channel.size() - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    static void encode(byte[] out, int off, long timestampNs, int flags, byte[] thermal, byte[] sysConfig,
+                       byte[] p1Params, byte[] p1Power, byte[] p3Params, byte[] p3Power) {
+        for (int b = 0; b < 8; ++b) {
+            out[off + OFF_TIMESTAMP + b] = (byte)(timestampNs >>> (8 * b));
+        }
+        System.arraycopy(thermal, 0, out, off + OFF_THERMAL, HubFrame.THERMAL_PORT_STATUS_SIZE);
+        System.arraycopy(sysConfig, 0, out, off + OFF_SYS_CONFIG, HubFrame.PB_SYS_CONFIG_SIZE);
+        System.arraycopy(p1Params, 0, out, off + OFF_P1_PARAMS, HubFrame.PORT_PARAMS_SIZE);
+        System.arraycopy(p1Power, 0, out, off + OFF_P1_POWER, HubFrame.PORT_POWER_ALLOCATION_SIZE);
+        System.arraycopy(p3Params, 0, out, off + OFF_P3_PARAMS, HubFrame.PORT_PARAMS_SIZE);
+        System.arraycopy(p3Power, 0, out, off + OFF_P3_POWER, HubFrame.PORT_POWER_ALLOCATION_SIZE);
+        out[off + OFF_FLAGS] = (byte)flags;
+        out[off + RECORD_SIZE - 1] = 0;
+    }
+
+    static int getFlags(byte[] b, int off) {
+        return b[off + OFF_FLAGS] & 0xFF;
+    }
+
+    static long getTimestamp(byte[] b, int off) {
+        return (HubFrame.getInt(b, off + OFF_TIMESTAMP) & 0xFFFFFFFFL)
+                | ((long)HubFrame.getInt(b, off + OFF_TIMESTAMP + 4) << 32);
+    }
+}
@@ -0,0 +1,158 @@
+package com.gromaudio.powerbalancing;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Records polls to a {@link CaptureFile} on its own background thread.
+ *
+ * record() only encodes the poll into a record buffer from a fixed pool and queues it; the worker
+ * writes the queued records and returns the buffers. If the worker falls POOL_SIZE records
+ * behind, records are dropped (and counted) rather than stalling the poll.
+ * start(), stop() and record() are called on one thread at a time (the HubManager handler or
+ * a dump).
+ */
+class CaptureRecorder {
+    private static final String TAG = "PB:CaptureRecorder";
+
+    private static final int POOL_SIZE = 64;
+
+    private final HandlerThread mThread;
+    private final Handler mWorker;
+    private final ArrayBlockingQueue<byte[]> mFree = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<byte[]> mQueued = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private volatile boolean mRecording;
+    private volatile int mDropped;
+    private volatile long mWritten;
+    private volatile boolean mFailed;
+
+    //Worker thread only
+    private CaptureFile.Writer mWriter;
+
+    CaptureRecorder() {
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            mFree.add(new byte[CaptureFile.RECORD_SIZE]);
+        }
+        mThread = new HandlerThread("PB:CaptureRecorder", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorker = new Handler(mThread.getLooper());
+    }
+
+    void close() {
+        stop();
+        mThread.quitSafely();
+    }
+
+    /**
+     * Record to out from the next poll on. Stops the current recording.
+     * @param out written and closed on the worker thread
+     */
+    void start(final OutputStream out, final String firmware) {
+        stop();
+        mDropped = 0;
+        mWritten = 0;
+        mRecording = true;
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                //After the previous recording is closed
+                mFailed = false;
+                try {
+                    mWriter = new CaptureFile.Writer(out, firmware);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't start recording: " + e.getMessage());
+                    mFailed = true;
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    //Records queued so far are still written
+    void stop() {
+        if (!mRecording) {
+            return;
+        }
+        mRecording = false;
+        mWorker.post(mClose);
+    }
+
+    boolean isRecording() {
+        return mRecording;
+    }
+
+    void record(long timestampNs, int flags, byte[] thermal, byte[] sysConfig,
+                byte[] p1Params, byte[] p1Power, byte[] p3Params, byte[] p3Power) {
+        if (!mRecording || mFailed) {
+            return;
+        }
+        byte[] record = mFree.poll();
+        if (record == null) {
+            mDropped++;
+            return;
+        }
+        CaptureFile.encode(record, 0, timestampNs, flags, thermal, sysConfig, p1Params, p1Power, p3Params, p3Power);
+        mQueued.add(record);
+        mWorker.post(mWrite);
+    }
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            byte[] record;
+            while ((record = mQueued.poll()) != null) {
+                if (mWriter != null) {
+                    try {
+                        mWriter.writeRecord(record);
+                        mWritten++;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Recording failed: " + e.getMessage());
+                        mFailed = true;
+                        closeWriter();
+                    }
+                }
+                mFree.add(record);
+            }
+        }
+    };
+
+    private final Runnable mClose = new Runnable() {
+        @Override
+        public void run() {
+            mWrite.run();
+            closeWriter();
+        }
+    };
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Can't close recording: " + e.getMessage());
+            }
+            mWriter = null;
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            //Nothing recorded
+        }
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "recording=" + mRecording + (mFailed ? " (failed)" : "") + " written=" + mWritten
+                + " dropped=" + mDropped + " queued=" + mQueued.size());
+    }
+}
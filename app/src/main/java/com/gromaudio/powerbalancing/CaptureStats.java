@@ -0,0 +1,87 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.PrintWriter;
+
+/**
+ * Mergeable accumulator of capture analytics, summed over both ports.
+ * Durations are integrated between consecutive frames with the state of the earlier frame;
+ * gaps longer than MAX_GAP_NS (capture paused, hub disconnected) are not counted.
+ */
+class CaptureStats {
+    static final long MAX_GAP_NS = 10L * 1000 * 1000 * 1000;
+    private static final double NANOS_PER_HOUR = 3600.0 * 1000 * 1000 * 1000;
+
+    long frames;
+    long durationNs;            //Covered capture time
+    long attachedNs;            //Port time with a device attached
+    long warningNs;             //Port time in thermal WARNING
+    long capMismatchEvents;     //cap_mismatch rising edges
+    final long[] tierNs = new long[NegotiationTracker.TIERS];    //Negotiated port time per contract tier
+    final long[] contracts = new long[NegotiationTracker.TIERS]; //New contracts (negotiated rising edges) per tier
+
+    /**
+     * Account one frame.
+     * @param prev previous frame of the same capture, null for the first one
+     */
+    void add(HubFrame prev, HubFrame f) {
+        frames++;
+        if (prev == null) {
+            return;
+        }
+        long dt = f.timestampNs - prev.timestampNs;
+        if (dt <= 0 || dt > MAX_GAP_NS) {
+            dt = 0;
+        }
+        durationNs += dt;
+        for (int p = 0; p < HubFrame.PORTS; ++p) {
+            HubFrame.PortFrame a = prev.ports[p];
+            HubFrame.PortFrame b = f.ports[p];
+            if (a.attached) {
+                attachedNs += dt;
+            }
+            if (a.thermal == ThermalState.WARNING) {
+                warningNs += dt;
+            }
+            if (a.negotiated) {
+                tierNs[NegotiationTracker.tierOf(a.negotiatedVoltage * a.negotiatedCurrent)] += dt;
+            }
+            if (b.negotiated && !a.negotiated) {
+                contracts[NegotiationTracker.tierOf(b.negotiatedVoltage * b.negotiatedCurrent)]++;
+            }
+            if (b.capMismatch && !a.capMismatch) {
+                capMismatchEvents++;
+            }
+        }
+    }
+
+    void merge(CaptureStats other) {
+        frames += other.frames;
+        durationNs += other.durationNs;
+        attachedNs += other.attachedNs;
+        warningNs += other.warningNs;
+        capMismatchEvents += other.capMismatchEvents;
+        for (int t = 0; t < NegotiationTracker.TIERS; ++t) {
+            tierNs[t] += other.tierNs[t];
+            contracts[t] += other.contracts[t];
+        }
+    }
+
+    //cap_mismatch events per hour of attached port time
+    double getCapMismatchPerHour() {
+        return (attachedNs <= 0) ? 0 : capMismatchEvents * NANOS_PER_HOUR / attachedNs;
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(String.format("%sframes=%d duration=%.1fh attached=%.1fh warning=%.2fh cap_mismatch=%d (%.2f/h attached)",
+                prefix, frames, durationNs / NANOS_PER_HOUR, attachedNs / NANOS_PER_HOUR, warningNs / NANOS_PER_HOUR,
+                capMismatchEvents, getCapMismatchPerHour()));
+        long negotiatedNs = 0;
+        for (int t = 0; t < NegotiationTracker.TIERS; ++t) {
+            negotiatedNs += tierNs[t];
+        }
+        for (int t = 0; t < NegotiationTracker.TIERS; ++t) {
+            pw.println(String.format("%s  %-7s %5.1f%% of negotiated time, %d contracts", prefix, NegotiationTracker.tierName(t),
+                    (negotiatedNs == 0) ? 0 : tierNs[t] * 100.0 / negotiatedNs, contracts[t]));
+        }
+    }
+}
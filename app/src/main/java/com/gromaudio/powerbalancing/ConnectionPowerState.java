@@ -7,6 +7,7 @@ class ConnectionPowerState {
     float a;
     float maxP = MAX_POWER;
     boolean connected;
+    ThermalState thermalState = ThermalState.NOT_IMPLEMENTED;
 
     public ConnectionPowerState() {
     }
@@ -57,4 +58,12 @@ class ConnectionPowerState {
     public void setConnected(boolean connected) {
         this.connected = connected;
     }
+
+    public ThermalState getThermalState() {
+        return thermalState;
+    }
+
+    public void setThermalState(ThermalState thermalState) {
+        this.thermalState = thermalState;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+package com.gromaudio.powerbalancing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lifecycle of the HFC connection.
+ *
+ *   CLOSED -> DISCOVERING -> AWAITING_PERMISSION -> OPEN -> POLLING <-> DEGRADED
+ *   (any state) -> CLOSED
+ *   AWAITING_PERMISSION -> CLOSED (new generation) if the permission result never arrives
+ *
+ * State and generation are packed in one AtomicLong, so every transition is a single
+ * compare-and-set and no lock is held while the caller does USB I/O.
+ * The generation changes when discovery starts and when the connection is closed: events
+ * (permission broadcasts, poll results) carrying an older generation are stale and ignored.
+ */
+class ConnectionState {
+    static final int CLOSED = 0;
+    static final int DISCOVERING = 1;
+    static final int AWAITING_PERMISSION = 2;
+    static final int OPEN = 3;
+    static final int POLLING = 4;
+    static final int DEGRADED = 5;
+
+    //Allowed transitions: bit per target state
+    private static final int[] ALLOWED = {
+            /*CLOSED*/              1 << DISCOVERING,
+            /*DISCOVERING*/         1 << AWAITING_PERMISSION | 1 << CLOSED,
+            /*AWAITING_PERMISSION*/ 1 << OPEN | 1 << CLOSED,
+            /*OPEN*/                1 << POLLING | 1 << DEGRADED | 1 << CLOSED,
+            /*POLLING*/             1 << DEGRADED | 1 << CLOSED,
+            /*DEGRADED*/            1 << POLLING | 1 << CLOSED,
+    };
+
+    private final AtomicLong mValue = new AtomicLong(pack(0, CLOSED));
+
+    /**
+     * @return packed state and generation, see state() and generation()
+     */
+    long get() {
+        return mValue.get();
+    }
+
+    static int state(long value) {
+        return (int)(value & 0xFF);
+    }
+
+    static int generation(long value) {
+        return (int)(value >>> 8);
+    }
+
+    //OPEN, POLLING or DEGRADED: there is a connection to poll.
+    static boolean isConnected(long value) {
+        int s = state(value);
+        return s == OPEN || s == POLLING || s == DEGRADED;
+    }
+
+    /**
+     * @return true if a permission result of the generation belongs to the pending request.
+     */
+    static boolean isAwaitingPermission(long value, int generation) {
+        return state(value) == AWAITING_PERMISSION && generation(value) == generation;
+    }
+
+    /**
+     * Move from the observed value to the state within the same generation.
+     * @return false if the state or generation has changed since expected was read, or the
+     * transition isn't allowed.
+     */
+    boolean transition(long expected, int to) {
+        if ((ALLOWED[state(expected)] & (1 << to)) == 0) {
+            return false;
+        }
+        return mValue.compareAndSet(expected, pack(generation(expected), to));
+    }
+
+    /**
+     * CLOSED -> DISCOVERING with a new generation.
+     * @return the new value or -1 if not CLOSED (discovery or connection already in progress).
+     */
+    long startDiscovery() {
+        while (true) {
+            long v = mValue.get();
+            if (state(v) != CLOSED) {
+                return -1;
+            }
+            long next = pack(generation(v) + 1, DISCOVERING);
+            if (mValue.compareAndSet(v, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * AWAITING_PERMISSION -> CLOSED with a new generation, if the permission request of the
+     * generation never got an answer. A late answer is then stale.
+     * @return false if the request has been answered or superseded meanwhile
+     */
+    boolean expirePermission(int generation) {
+        while (true) {
+            long v = mValue.get();
+            if (!isAwaitingPermission(v, generation)) {
+                return false;
+            }
+            if (mValue.compareAndSet(v, pack(generation + 1, CLOSED))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Any state -> CLOSED with a new generation. Pending events of the closed generation
+     * become stale.
+     * @return the previous value
+     */
+    long close() {
+        while (true) {
+            long v = mValue.get();
+            if (state(v) == CLOSED) {
+                return v;
+            }
+            if (mValue.compareAndSet(v, pack(generation(v) + 1, CLOSED))) {
+                return v;
+            }
+        }
+    }
+
+    private static long pack(int generation, int state) {
+        return ((generation & 0xFFFFFFFFL) << 8) | state;
+    }
+
+    static String name(int state) {
+        switch (state) {
+            case CLOSED: return "CLOSED";
+            case DISCOVERING: return "DISCOVERING";
+            case AWAITING_PERMISSION: return "AWAITING_PERMISSION";
+            case OPEN: return "OPEN";
+            case POLLING: return "POLLING";
+            case DEGRADED: return "DEGRADED";
+            default: return "unknown";
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.gromaudio.powerbalancing;
+
+/**
+ * Per-port energy accounting.
+ * Integrates the reported port power over the elapsed (monotonic) time using the trapezoidal
+ * rule and splits the result into charging sessions on attach/detach.
+ * Every sample is O(1) and allocation free. Sums are kept with Kahan compensation so that
+ * lifetime totals don't lose the small per-poll increments after months of operation.
+ */
+class EnergyAccumulator {
+    private static final double NANOS_PER_HOUR = 3600.0 * 1000 * 1000 * 1000;
+
+    //Kahan (compensated) sum.
+    static final class CompensatedSum {
+        private double mSum;
+        private double mC;
+
+        void add(double value) {
+            double y = value - mC;
+            double t = mSum + y;
+            mC = (t - mSum) - y;
+            mSum = t;
+        }
+
+        void set(double value) {
+            set(value, 0);
+        }
+
+        void set(double value, double compensation) {
+            mSum = value;
+            mC = compensation;
+        }
+
+        double get() {
+            return mSum;
+        }
+
+        //Low order bits lost by get(), must be persisted along with it
+        double getCompensation() {
+            return mC;
+        }
+    }
+
+    //Current session (valid while mInSession)
+    private boolean mInSession;
+    private long mLastTimestampNs;
+    private float mLastPower;
+    private final CompensatedSum mSessionWh = new CompensatedSum();
+    private long mSessionDurationNs;
+    private float mSessionPeakW;
+
+    //Last completed session
+    private double mLastSessionWh;
+    private long mLastSessionDurationNs;
+    private float mLastSessionPeakW;
+
+    //Lifetime
+    private final CompensatedSum mLifetimeWh = new CompensatedSum();
+    private long mLifetimeDurationNs;
+    private float mLifetimePeakW;
+    private int mSessionCount;
+
+    /**
+     * Feed one poll result.
+     * @param timestampNs monotonic timestamp of the sample (e.g. SystemClock.elapsedRealtimeNanos())
+     * @param attached port attached state
+     * @param power port power (W)
+     * @return true if this sample closed a session (the port has been detached).
+     */
+    boolean addSample(long timestampNs, boolean attached, float power) {
+        if (!attached) {
+            if (mInSession) {
+                endSession();
+                return true;
+            }
+            return false;
+        }
+
+        if (!mInSession) {
+            mInSession = true;
+            mSessionWh.set(0);
+            mSessionDurationNs = 0;
+            mSessionPeakW = 0;
+            mSessionCount++;
+        } else {
+            long dt = timestampNs - mLastTimestampNs;
+            if (dt > 0) {
+                double wh = (mLastPower + power) * 0.5 * dt / NANOS_PER_HOUR;
+                mSessionWh.add(wh);
+                mLifetimeWh.add(wh);
+                mSessionDurationNs += dt;
+                mLifetimeDurationNs += dt;
+            }
+        }
+        if (power > mSessionPeakW) {
+            mSessionPeakW = power;
+        }
+        if (power > mLifetimePeakW) {
+            mLifetimePeakW = power;
+        }
+        mLastTimestampNs = timestampNs;
+        mLastPower = power;
+        return false;
+    }
+
+    /**
+     * Sampling has been stopped (hub disconnected, app stopped...).
+     * Closes the current session, so the gap until the next sample is not integrated.
+     * @return true if a session has been closed.
+     */
+    boolean interrupt() {
+        if (mInSession) {
+            endSession();
+            return true;
+        }
+        return false;
+    }
+
+    private void endSession() {
+        mInSession = false;
+        mLastSessionWh = mSessionWh.get();
+        mLastSessionDurationNs = mSessionDurationNs;
+        mLastSessionPeakW = mSessionPeakW;
+    }
+
+    /**
+     * Restore the persisted lifetime totals.
+     * @param lifetimeWhCompensation as returned by getLifetimeWhCompensation(), so that a
+     *                               save/restore cycle doesn't drop the accumulated rounding error.
+     */
+    void restore(double lifetimeWh, double lifetimeWhCompensation, long lifetimeDurationNs,
+                 float lifetimePeakW, int sessionCount) {
+        mLifetimeWh.set(lifetimeWh, lifetimeWhCompensation);
+        mLifetimeDurationNs = lifetimeDurationNs;
+        mLifetimePeakW = lifetimePeakW;
+        mSessionCount = sessionCount;
+    }
+
+    boolean isInSession() {
+        return mInSession;
+    }
+
+    //Current session if any, otherwise the last completed one.
+    double getSessionWh() {
+        return mInSession ? mSessionWh.get() : mLastSessionWh;
+    }
+
+    long getSessionDurationNs() {
+        return mInSession ? mSessionDurationNs : mLastSessionDurationNs;
+    }
+
+    float getSessionPeakW() {
+        return mInSession ? mSessionPeakW : mLastSessionPeakW;
+    }
+
+    float getSessionAverageW() {
+        return averageW(getSessionWh(), getSessionDurationNs());
+    }
+
+    double getLifetimeWh() {
+        return mLifetimeWh.get();
+    }
+
+    double getLifetimeWhCompensation() {
+        return mLifetimeWh.getCompensation();
+    }
+
+    long getLifetimeDurationNs() {
+        return mLifetimeDurationNs;
+    }
+
+    float getLifetimePeakW() {
+        return mLifetimePeakW;
+    }
+
+    float getLifetimeAverageW() {
+        return averageW(mLifetimeWh.get(), mLifetimeDurationNs);
+    }
+
+    int getSessionCount() {
+        return mSessionCount;
+    }
+
+    private static float averageW(double wh, long durationNs) {
+        if (durationNs <= 0) {
+            return 0;
+        }
+        return (float)(wh * NANOS_PER_HOUR / durationNs);
+    }
+}
@@ -0,0 +1,151 @@
+package com.gromaudio.powerbalancing;
+
+/**
+ * Decoded state of the hub for one poll.
+ * The object is reused: decode() overwrites every field and doesn't allocate.
+ */
+class HubFrame {
+    static final int PORTS = 2;
+
+    //Register sizes (bytes)
+    static final int THERMAL_PORT_STATUS_SIZE = 2;
+    static final int PORT_PARAMS_SIZE = 8;
+    static final int PORT_POWER_ALLOCATION_SIZE = 4;
+    static final int PB_SYS_CONFIG_SIZE = 4;
+
+    private static final float SYS_WATTS_K = 1000.0f;
+    private static final float PORT_WATTS_K = 0.5f;
+    private static final float VOLTS_K = 0.05f;
+    private static final float VOLTS_OPERATE_K = 0.02f;
+    //*0.5f (Connor: The current reading is off. It is twice would it should be. Just divide the current current reading by 2.)
+    private static final float AMPS_K = 0.01f *0.5f;
+
+    private static final float DEFAULT_V = 5.0f; // 5.0V
+    private static final float DEFAULT_I = 3.0f; // 3.0A
+
+    static final class PortFrame {
+        boolean attached;
+        boolean orientation;
+        byte rpRd;
+        boolean negotiated;
+        boolean capMismatch;
+        boolean contractOperate;
+        boolean pbEnabled;
+        float negotiatedVoltage; // V_NEGOTIATED (V)
+        float negotiatedCurrent; // I_NEGOTIATED (A)
+        float operationalVoltage; // V_OPERATIONAL (V)
+        float maxPower;  // Port MAX power (W)
+        float voltage;   // Resulting voltage (V)
+        float current;   // Resulting current (A)
+        float power;     // voltage*current (W)
+        ThermalState thermal = ThermalState.NOT_IMPLEMENTED;
+
+        void decode(byte[] params, byte[] powerAllocation, ThermalState ts) {
+            thermal = ts;
+            attached = ((params[0] & 0x01) == 0x01);
+            orientation = ((params[0] & 0x02) == 0x02);
+            rpRd = (byte)((params[0] & 0x0C) >> 2);
+            negotiated = ((params[0] & 0x10) == 0x10);
+            capMismatch = ((params[0] & 0x20) == 0x20);
+            contractOperate = ((params[7] & 0x40) == 0x40);
+
+            //V_NEGOTIATED (15:6 bits)
+            int negot_v_now = ((0xFFC0 & getShort(params, 0)) >> 6); // 0.05V/50mV units
+            //I_NEGOTIATED (25:16 bits)
+            int negot_i_now = (0x03FF & getShort(params, 2)); // 0.01A/10mA units
+            //V_OPERATIONAL (41:32 bits)
+            int operate_v_now = (0x03FF & getShort(params, 4)); // 0.02V/20mV units
+            negotiatedVoltage = negot_v_now*VOLTS_K;
+            negotiatedCurrent = negot_i_now*AMPS_K;
+            operationalVoltage = operate_v_now*VOLTS_OPERATE_K;
+
+            //Max port power
+            int max_pwr = (0x03FF & getShort(powerAllocation, 0)); // 0.5W/500mW units
+            maxPower = max_pwr*PORT_WATTS_K;
+            pbEnabled = ((powerAllocation[3] & 0x08) == 0x08);
+
+            /**
+             * Fixes.
+             * Need to tidy up the values in case of USB-C (non-PD) attach
+             * Cosmetic: The power balancing algorithm does not zero the previously-negotiated V & I upon
+             * detach which makes new USB-C (non-PD) connections take the previous negotiated power value in UI.
+             * Workaround: If attached but not "negotiated", set V=5V and I=3A (this may not accurately
+             * reflect the true VBUS state as "negotiated" is a context of the power balancing algorithm
+             * and not any explicit PD contract).
+             */
+            voltage = contractOperate ? operationalVoltage : negotiatedVoltage;
+            current = negotiatedCurrent;
+            if (attached && !negotiated) {
+                voltage = DEFAULT_V;
+                current = DEFAULT_I;
+            }
+            power = voltage * current;
+        }
+
+        void copyFrom(PortFrame f) {
+            attached = f.attached;
+            orientation = f.orientation;
+            rpRd = f.rpRd;
+            negotiated = f.negotiated;
+            capMismatch = f.capMismatch;
+            contractOperate = f.contractOperate;
+            pbEnabled = f.pbEnabled;
+            negotiatedVoltage = f.negotiatedVoltage;
+            negotiatedCurrent = f.negotiatedCurrent;
+            operationalVoltage = f.operationalVoltage;
+            maxPower = f.maxPower;
+            voltage = f.voltage;
+            current = f.current;
+            power = f.power;
+            thermal = f.thermal;
+        }
+    }
+
+    long timestampNs;
+    float sysPower; // The max shared power capacity (W)
+    final PortFrame[] ports = { new PortFrame(), new PortFrame() };
+
+    /**
+     * Decode the raw HFC registers (little endian, as read by CMD_MEMORY_READ).
+     */
+    void decode(long timestamp, byte[] thermalBuff, byte[] sysConfBuff,
+                byte[] p1Params, byte[] p1Power, byte[] p3Params, byte[] p3Power) {
+        timestampNs = timestamp;
+        //1 Byte (THERMAL_STATE) where bits 1:0 are for port 1 and 5:4 are for port 3
+        ports[0].decode(p1Params, p1Power, thermalState(thermalBuff[0]&0x03));
+        ports[1].decode(p3Params, p3Power, thermalState(((thermalBuff[0]&0xFF) >> 4) & 0x03));
+        //Max system power
+        int sys_pwr = (0x00FFFFFF & getInt(sysConfBuff, 0)); // The max shared power capacity (in mW)
+        sysPower = sys_pwr/SYS_WATTS_K;
+    }
+
+    void copyFrom(HubFrame f) {
+        timestampNs = f.timestampNs;
+        sysPower = f.sysPower;
+        for (int p = 0; p < PORTS; ++p) {
+            ports[p].copyFrom(f.ports[p]);
+        }
+    }
+
+    PortFrame port(int port) {
+        return ports[port - 1];
+    }
+
+    private static ThermalState thermalState(int bits) {
+        switch (bits) {
+            case 0x00: return ThermalState.NORMAL;
+            case 0x01: return ThermalState.WARNING;
+            case 0x02: return ThermalState.SHUTDOWN;
+            default: return ThermalState.NOT_IMPLEMENTED;
+        }
+    }
+
+    //Little endian helpers (ByteBuffer.wrap() would allocate on every poll)
+    static short getShort(byte[] b, int off) {
+        return (short)((b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8));
+    }
+
+    static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+    }
+}
@@ -1,18 +1,25 @@
 package com.gromaudio.powerbalancing;
 
+import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -30,6 +37,7 @@ public class HubManager {
     public static final int HUB_STATUS_ERRORS = -1;
 
     private static final String ACTION_USB_PERMISSION = "com.gromaudio.powerbalancing.USB_PERMISSION";
+    private static final String EXTRA_GENERATION = "generation";
 
     //Lookup table.
     class HubId {
@@ -56,37 +64,71 @@ public class HubManager {
         byte[] mPortPowerBuff = new byte[32];
     };
 
-    private static final float SYS_WATTS_K = 1000.0f;
-    private static final float PORT_WATTS_K = 0.5f;
-    private static final float VOLTS_K = 0.05f;
-    private static final float VOLTS_OPERATE_K = 0.02f;
-    //*0.5f (Connor: The current reading is off. It is twice would it should be. Just divide the current current reading by 2.)
-    private static final float AMPS_K = 0.01f *0.5f;
-
-    private static final float DEFAULT_V = 5.0f; // 5.0V
-    private static final float DEFAULT_I = 3.0f; // 3.0A
-
     //Usb ControlTransfer request codes
     private static final int CMD_MEMORY_READ = 0x04;
     private static final int CMD_MEMORY_WRITE = 0x03;
 
     private static final int CTRL_TIMEOUT = 5*1000;  //ms
     private static final int DATA_UPDATE_PERIOD = 1000; //ms
+    //Low-power mode (screen off, device idle or UI in background)
+    private static final long LOW_POWER_UPDATE_PERIOD = 60*1000; //ms
+    private static final long LOW_POWER_UPDATE_WINDOW = 30*1000; //ms, lets the system batch our wakeup with others
+    private static final int LOW_POWER_FULL_READ_EVERY = 10; //polls; the rest read THERMAL and PORT_PARAMS only
+    private static final long FULL_RATE_HOLD_NS = 30L*1000*1000*1000; //Full rate polling after a port edge
     private static final int CONTROL_TRANSFER_ATTEMPTS = 5;
+    private static final long PERMISSION_TIMEOUT = 30*1000; //ms, then discovery can start over
+
+    //Energy accounting persistence
+    private static final String ENERGY_PREFS = "energy";
+    private static final long ENERGY_SAVE_PERIOD_NS = 60L*1000*1000*1000; //Save totals at least once a minute while charging
 
     private UsbManager mUsbManager;
+    private AlarmManager mAlarmManager;
+    private PowerManager mPowerManager;
     private UsbDevice mHfcDevice; //Hub feature controller
-    private UsbDeviceConnection mHfcConnection;
+    private SharedConnection mHfcConnection;
+    private final ConnectionState mState = new ConnectionState();
     private Context mContext;
     private Handler mHandler;
     private IHubListener mListener;
 
+    private int mHubStatus = HUB_STATUS_DISCONNECTED;
+    private final HubFrame mFrame = new HubFrame();
+    private final HubFrame mPrevFrame = new HubFrame();
+    private boolean mPrevFrameValid;
+    private final BurstSampler mBurst;
+    private final MemorySnapshotter mSnapshotter;
+    private final TelemetryExporter mTelemetry = TelemetryExporter.getInstance();
+
     private PortBuffers mP1Buffs = new PortBuffers();
     private PortBuffers mP3Buffs = new PortBuffers();
     private byte[] mSysConfBuff = new byte[32];
     private byte[] mThermalStateBuff = new byte[32];
 
     private int mControlTransferAttempts = CONTROL_TRANSFER_ATTEMPTS;
+    private int mPermissionGeneration; //of the pending permission request
+
+    private boolean mScreenOff;
+    private boolean mDeviceIdle;
+    private long mFullRateUntilNs;
+    private int mLowPowerPolls;
+    private boolean mBackground;
+    private final PollCounter mPolls = new PollCounter();
+
+    private EnergyAccumulator mP1Energy = new EnergyAccumulator();
+    private EnergyAccumulator mP3Energy = new EnergyAccumulator();
+    private long mEnergySavedNs;
+
+    private PortStatistics mP1Stats = new PortStatistics();
+    private PortStatistics mP3Stats = new PortStatistics();
+
+    private NegotiationTracker mP1Negotiation = new NegotiationTracker();
+    private NegotiationTracker mP3Negotiation = new NegotiationTracker();
+
+    private AlertEngine mAlerts; //null if the rules couldn't be loaded
+    private final CaptureRecorder mRecorder = new CaptureRecorder();
+    private AlertEngine.IAlertListener mAlertListener;
+    private BurstSampler.IBurstListener mBurstListener;
 
     public interface IHubListener {
         void onPortStatus(int port, boolean attached, boolean negotiated, boolean orientation, boolean cap_mismatch,
@@ -98,20 +140,204 @@ public class HubManager {
         mContext = ctx;
         mListener = listener;
         mHandler = new Handler();
+        mBurst = new BurstSampler(mHandler);
+        mBurst.setListener(mBurstDispatcher);
+        mSnapshotter = new MemorySnapshotter(mHandler);
 
         mUsbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         mContext.registerReceiver(mUsbReceiver, filter);
-        if (mListener!=null) {
-            mListener.onHubStatus(HUB_STATUS_DISCONNECTED);
-        }
+
+        mAlarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mScreenOff = !mPowerManager.isInteractive();
+        mDeviceIdle = mPowerManager.isDeviceIdleMode();
+        IntentFilter powerFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        powerFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        powerFilter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        mContext.registerReceiver(mPowerReceiver, powerFilter);
+        restoreEnergy();
+        loadAlertRules();
+        notifyHubStatus(HUB_STATUS_DISCONNECTED);
     }
 
     public void close() {
+        stop();
         mContext.unregisterReceiver(mUsbReceiver);
+        mContext.unregisterReceiver(mPowerReceiver);
         mUsbManager = null;
+        mBurst.close();
+        mSnapshotter.close();
+        mRecorder.close();
+        saveEnergy(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Capture PORT_PARAMS of the port at the highest rate the bus allows for the burst window.
+     * Captures also start automatically on attach, detach, cap_mismatch and thermal state edges.
+     * @param port 1 or 2
+     */
+    public void startBurstCapture(int port) {
+        startBurstCapture(port, BurstCapture.TRIGGER_MANUAL);
+    }
+
+    public void setBurstWindow(int ms) {
+        mBurst.setWindow(ms);
+    }
+
+    public void setBurstListener(BurstSampler.IBurstListener listener) {
+        mBurstListener = listener;
+    }
+
+    /**
+     * Export the last completed burst capture of the port as CSV.
+     */
+    public void writeBurstCapture(int port, PrintWriter pw) {
+        mBurst.writeCompleted(port, pw);
+    }
+
+    /**
+     * Snapshot the PB block and thermal area of the HFC memory in the background.
+     * Each snapshot is diffed against the previous one.
+     * @return false if not connected or a snapshot is running
+     */
+    public boolean takeMemorySnapshot() {
+        return takeMemorySnapshot(MemorySnapshotter.DEFAULT_ADDRESSES, MemorySnapshotter.DEFAULT_LENGTHS);
+    }
+
+    public boolean takeMemorySnapshot(int[] addresses, int[] lengths) {
+        if (!ConnectionState.isConnected(mState.get())) {
+            return false;
+        }
+        return mSnapshotter.request(addresses, lengths);
+    }
+
+    /**
+     * Record the raw registers of every poll in CaptureFile format, for offline analysis with
+     * CaptureAnalytics. Recording stops with the connection. The file is written in the background.
+     * @param out closed by stopRecording()
+     * @return false if not connected
+     */
+    public boolean startRecording(OutputStream out) {
+        if (!ConnectionState.isConnected(mState.get()) || mHfcDevice == null) {
+            return false;
+        }
+        mRecorder.start(out, mHfcDevice.getVersion());
+        return true;
+    }
+
+    public void stopRecording() {
+        mRecorder.stop();
+    }
+
+    void setMemorySnapshotListener(MemorySnapshotter.ISnapshotListener listener) {
+        mSnapshotter.setListener(listener);
+    }
+
+    /**
+     * Export the latest memory snapshot (see MemorySnapshot for the format).
+     * @return false if there is none
+     */
+    public boolean writeMemorySnapshot(OutputStream os) throws IOException {
+        return mSnapshotter.writeLatest(os);
+    }
+
+    public void writeMemorySnapshotDiff(PrintWriter pw) {
+        mSnapshotter.writeDiff(pw);
+    }
+
+    private void startBurstCapture(int port, int trigger) {
+        PortBuffers buffs = (port==1) ? mP1Buffs : mP3Buffs;
+        mBurst.request(port, trigger, buffs.mPortPowerBuff);
+    }
+
+    /**
+     * Alerts of res/raw/alert_rules. Called on the HubManager handler thread.
+     */
+    void setAlertListener(AlertEngine.IAlertListener listener) {
+        mAlertListener = listener;
+    }
+
+    /**
+     * Energy accounting for the port.
+     * @param port 1 or 2 for hub ports 1 and 3, as in IHubListener.onPortStatus
+     */
+    EnergyAccumulator getEnergy(int port) {
+        return (port==1) ? mP1Energy : mP3Energy;
+    }
+
+    /**
+     * Windowed power/voltage/current statistics for the port.
+     * Timestamps are SystemClock.elapsedRealtimeNanos() based.
+     * @param port 1 or 2 (as reported by IHubListener.onPortStatus)
+     */
+    PortStatistics getStatistics(int port) {
+        return (port==1) ? mP1Stats : mP3Stats;
+    }
+
+    /**
+     * PD negotiation latencies (attach to negotiated / non-default V/I / full power) for the port.
+     * Attaches are timed on burst captures of armed ports, or from the poll that saw them.
+     * @param port 1 or 2 (as reported by IHubListener.onPortStatus)
+     */
+    NegotiationTracker getNegotiation(int port) {
+        return (port==1) ? mP1Negotiation : mP3Negotiation;
+    }
+
+    public void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "HubManager:");
+        String p = prefix + "  ";
+        long now = SystemClock.elapsedRealtimeNanos();
+        long state = mState.get();
+        pw.println(p + "hubStatus=" + mHubStatus + " state=" + ConnectionState.name(ConnectionState.state(state))
+                + " generation=" + ConnectionState.generation(state)
+                + " device=" + (mHfcDevice != null ? mHfcDevice.getDeviceName() : null));
+        for (int port = 1; port <= HubFrame.PORTS; ++port) {
+            pw.println(p + "Port" + (port==1 ? 1 : 3) + ":");
+            EnergyAccumulator e = getEnergy(port);
+            pw.println(String.format("%s  energy: session=%.3fWh (%ds, avg %.1fW, peak %.1fW) lifetime=%.3fWh (%d sessions, peak %.1fW)",
+                    p, e.getSessionWh(), e.getSessionDurationNs() / 1000000000L, e.getSessionAverageW(), e.getSessionPeakW(),
+                    e.getLifetimeWh(), e.getSessionCount(), e.getLifetimePeakW()));
+            pw.println(p + "  statistics:");
+            dumpStatistics(p + "    ", pw, getStatistics(port), now);
+            pw.println(p + "  negotiation:");
+            getNegotiation(port).dump(p + "    ", pw);
+        }
+        pw.println(p + "memory snapshot chunk=" + mSnapshotter.getChunkSize());
+        mRecorder.dump(p + "capture ", pw);
+        if (mAlerts != null) {
+            pw.println(p + "active alerts:");
+            mAlerts.dump(p + "  ", pw);
+        }
+        long uptime = SystemClock.uptimeMillis() * 1000000L;
+        pw.println(String.format("%spolling: mode=%d screenOff=%s deviceIdle=%s background=%s", p, mPolls.getMode(),
+                mScreenOff, mDeviceIdle, mBackground));
+        pw.println(p + "  (polls are not wakeups: nothing is polled or monitored while the device is suspended)");
+        for (int mode = PollCounter.MODE_FULL; mode <= PollCounter.MODE_LOW_POWER; ++mode) {
+            pw.println(String.format("%s  %s: %d polls in %ds (%.0f polls/h), %ds suspended and not monitored", p,
+                    mode == PollCounter.MODE_FULL ? "full" : "low-power", mPolls.getPolls(mode),
+                    mPolls.getTimeNs(mode, now) / 1000000000L, mPolls.getPollsPerHour(mode, now),
+                    mPolls.getSuspendedNs(mode, now, uptime) / 1000000000L));
+        }
+    }
+
+    private static void dumpStatistics(String prefix, PrintWriter pw, PortStatistics stats, long nowNs) {
+        final String[] windows = { "1m", "1h", "24h" };
+        final String[] metrics = { "power(W)", "voltage(V)", "current(A)" };
+        for (int m = 0; m < PortStatistics.METRICS; ++m) {
+            MetricSketch sketch = PortStatistics.newQuerySketch(m);
+            for (int w = 0; w < PortStatistics.WINDOWS; ++w) {
+                stats.query(m, w, nowNs, sketch);
+                if (sketch.getCount() == 0) {
+                    continue;
+                }
+                pw.println(String.format("%s%s %s: n=%d min=%.2f p50=%.2f p95=%.2f max=%.2f mean=%.2f", prefix,
+                        windows[w], metrics[m], sketch.getCount(), sketch.getMin(), sketch.quantile(0.5f),
+                        sketch.quantile(0.95f), sketch.getMax(), sketch.getMean()));
+            }
+        }
     }
 
     public void update() {
@@ -120,20 +346,44 @@ public class HubManager {
     }
 
     public void stop() {
-        Log.d(TAG, "stop()");
+        long prev = mState.close();
+        Log.d(TAG, "stop(): " + ConnectionState.name(ConnectionState.state(prev)) + " -> CLOSED");
         mHandler.removeCallbacks(mDataUpdater);
+        mAlarmManager.cancel(mPollAlarm);
+        setPollMode(PollCounter.MODE_NONE);
+        mBurst.setConnection(null);
+        mSnapshotter.setConnection(null);
+        stopRecording();
+        mPrevFrameValid = false;
+        mP1Negotiation.reset();
+        mP3Negotiation.reset();
+        if (mAlerts != null) {
+            mAlerts.reset();
+        }
         if (mHfcConnection != null) {
+            //Closed by the last user if the burst sampler is in the middle of a transfer
             mHfcConnection.close();
             mHfcConnection = null;
         }
         mHfcDevice = null;
-        if (mListener!=null) {
-            mListener.onHubStatus(HUB_STATUS_DISCONNECTED);
+        //No samples until the next connection. Don't integrate over the gap.
+        boolean sessionEnded = mP1Energy.interrupt();
+        sessionEnded |= mP3Energy.interrupt();
+        if (sessionEnded) {
+            saveEnergy(SystemClock.elapsedRealtimeNanos());
         }
+        //Telemetry readers must not keep reading the last live frame once nothing polls the hub
+        mTelemetry.publishDisconnected(SystemClock.elapsedRealtimeNanos());
+        notifyHubStatus(HUB_STATUS_DISCONNECTED);
     }
 
     private void findHfc() {
         if (mUsbManager==null) return;
+        long state = mState.startDiscovery();
+        if (state < 0) {
+            Log.d(TAG, "findHfc(): " + ConnectionState.name(ConnectionState.state(mState.get())) + ", skip discovery");
+            return;
+        }
         HashMap<String, UsbDevice> devices = mUsbManager.getDeviceList();
         for(Map.Entry<String, UsbDevice> entry : devices.entrySet()) {
             UsbDevice dev = entry.getValue();
@@ -143,37 +393,68 @@ public class HubManager {
                 Log.d(TAG, String.format("Found UsbDevice: %s (%04x:%04x)", entry.getKey(), vid,pid));
                 for (int a=0; a < mLookupTable.length; ++a) {
                     if (vid==mLookupTable[a].VID && pid==mLookupTable[a].PID) {
-                        //Request permissions
-                        PendingIntent permissionIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
+                        if (!mState.transition(state, ConnectionState.AWAITING_PERMISSION)) {
+                            //Stopped meanwhile
+                            return;
+                        }
+                        //Request permissions. The answer is matched against the generation of this discovery.
+                        //Generation as requestCode: a newer request must not update the extras of a
+                        //PendingIntent still held by an older permission dialog.
+                        int generation = ConnectionState.generation(state);
+                        Intent intent = new Intent(ACTION_USB_PERMISSION).putExtra(EXTRA_GENERATION, generation);
+                        PendingIntent permissionIntent = PendingIntent.getBroadcast(mContext, generation, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+                        mPermissionGeneration = generation;
+                        mHandler.removeCallbacks(mPermissionTimeout);
+                        mHandler.postDelayed(mPermissionTimeout, PERMISSION_TIMEOUT);
                         mUsbManager.requestPermission(dev, permissionIntent);
                         Log.d(TAG, String.format("Found HFC and request permissions for: %s (%04x:%04x)", entry.getKey(), vid,pid));
-                        break;
+                        return;
                     }
                 }
             }
         }
+        mState.transition(state, ConnectionState.CLOSED);
     }
 
-    private void connectHfc() {
-        if (mUsbManager!=null && mHfcDevice != null) {
-            if (mHfcConnection!=null) {
-                mHfcConnection.close();
+    //No permission broadcast for the request: don't stay in AWAITING_PERMISSION (skipping discovery) forever
+    private final Runnable mPermissionTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mState.expirePermission(mPermissionGeneration)) {
+                Log.w(TAG, "No permission result (generation " + mPermissionGeneration + "), discovery can start over");
+                notifyHubStatus(HUB_STATUS_DISCONNECTED);
             }
-            mHfcConnection = mUsbManager.openDevice(mHfcDevice);
-            if (mHfcConnection != null) {
-                Log.d(TAG, "Start HFC data updating...");
-                if (mListener!=null) {
-                    mListener.onHubStatus(HUB_STATUS_CONNECTED);
-                }
-                mControlTransferAttempts = CONTROL_TRANSFER_ATTEMPTS;
-                mHandler.removeCallbacks(mDataUpdater);
-                mHandler.postDelayed(mDataUpdater, DATA_UPDATE_PERIOD);
-            } else {
-                Log.e(TAG, "Can't open HFC UsbDevice " + mHfcDevice);
-                if (mListener!=null) {
-                    mListener.onHubStatus(HUB_STATUS_DISCONNECTED);
-                }
+        }
+    };
+
+    /**
+     * @param state AWAITING_PERMISSION state of the discovery the permission was granted for
+     */
+    private void connectHfc(UsbDevice device, long state) {
+        if (mUsbManager == null) {
+            return;
+        }
+        UsbDeviceConnection connection = mUsbManager.openDevice(device);
+        if (!mState.transition(state, (connection != null) ? ConnectionState.OPEN : ConnectionState.CLOSED)) {
+            //Stopped while opening
+            Log.d(TAG, "Drop stale HFC connection (generation " + ConnectionState.generation(state) + ")");
+            if (connection != null) {
+                connection.close();
             }
+            return;
+        }
+        if (connection != null) {
+            Log.d(TAG, "Start HFC data updating...");
+            mHfcDevice = device;
+            mHfcConnection = new SharedConnection(connection);
+            notifyHubStatus(HUB_STATUS_CONNECTED);
+            mBurst.setConnection(mHfcConnection);
+            mSnapshotter.setConnection(mHfcConnection);
+            mControlTransferAttempts = CONTROL_TRANSFER_ATTEMPTS;
+            scheduleUpdate();
+        } else {
+            Log.e(TAG, "Can't open HFC UsbDevice " + device);
+            notifyHubStatus(HUB_STATUS_DISCONNECTED);
         }
     }
 
@@ -181,9 +462,20 @@ public class HubManager {
         @Override
         public void run() {
             mHandler.removeCallbacks(mDataUpdater);
-            if (mHfcDevice != null && mHfcConnection != null) {
-                if (updateHfcData()) {
-                    mHandler.postDelayed(mDataUpdater, DATA_UPDATE_PERIOD);
+            mAlarmManager.cancel(mPollAlarm);
+            long state = mState.get();
+            SharedConnection shared = mHfcConnection;
+            UsbDeviceConnection connection = (ConnectionState.isConnected(state) && shared != null) ? shared.acquire() : null;
+            if (connection != null) {
+                mPolls.poll();
+                boolean ok;
+                try {
+                    ok = updateHfcData(connection, state);
+                } finally {
+                    shared.release();
+                }
+                if (ok) {
+                    scheduleUpdate();
                 } else {
                     Log.d(TAG, "Hfc don't response. Try to reconnect...");
                     stop();
@@ -195,16 +487,77 @@ public class HubManager {
         }
     };
 
-    private boolean getHfcData(int addr, int size, byte[] resData, String name) {
-        int res = mHfcConnection.controlTransfer(
+    /**
+     * Read HFC memory. Safe to call from any thread.
+     * @return controlTransfer() result: bytes read or negative on error.
+     */
+    static int readHfcMemory(UsbDeviceConnection connection, int addr, int size, byte[] resData) {
+        return readHfcMemory(connection, addr, size, resData, CTRL_TIMEOUT);
+    }
+
+    static int readHfcMemory(UsbDeviceConnection connection, int addr, int size, byte[] resData, int timeoutMs) {
+        return connection.controlTransfer(
                 USB_DIR_IN | USB_TYPE_VENDOR, //RequestType - 0xC0 (0x80 | 0x40 | 0x00 )
                 CMD_MEMORY_READ,                         //Request - 0x04
                 (addr & 0xFFFF),                         //wValue
                 ((addr & 0xFFFF0000) >> 16),             //wIndex
                 resData,                                 //Data
                 size,                                    //wLength  (bytes to read)
-                CTRL_TIMEOUT                             //timeout ms.
+                timeoutMs                                //timeout ms.
         );
+    }
+
+    private final AlarmManager.OnAlarmListener mPollAlarm = new AlarmManager.OnAlarmListener() {
+        @Override
+        public void onAlarm() {
+            mDataUpdater.run();
+        }
+    };
+
+    private boolean isLowPower() {
+        return (mScreenOff || mDeviceIdle || mBackground) && SystemClock.elapsedRealtimeNanos() >= mFullRateUntilNs;
+    }
+
+    private void scheduleUpdate() {
+        mHandler.removeCallbacks(mDataUpdater);
+        mAlarmManager.cancel(mPollAlarm);
+        if (isLowPower()) {
+            setPollMode(PollCounter.MODE_LOW_POWER);
+            //Non-wakeup alarm with a window: delivered along with other system work, deferred while suspended.
+            mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + LOW_POWER_UPDATE_PERIOD, LOW_POWER_UPDATE_WINDOW,
+                    "PB:HubPoll", mPollAlarm, mHandler);
+        } else {
+            setPollMode(PollCounter.MODE_FULL);
+            mHandler.postDelayed(mDataUpdater, DATA_UPDATE_PERIOD);
+        }
+    }
+
+    private void setPollMode(int mode) {
+        mPolls.setMode(mode, SystemClock.elapsedRealtimeNanos(), SystemClock.uptimeMillis() * 1000000L);
+    }
+
+    /**
+     * Measured polls per hour. Not device wakeups: low-power polls don't wake the device up and
+     * the hub isn't monitored while it is suspended.
+     * @param mode PollCounter.MODE_FULL or PollCounter.MODE_LOW_POWER
+     */
+    public float getPollsPerHour(int mode) {
+        return mPolls.getPollsPerHour(mode, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Nobody is looking at the data: poll in low-power mode, as with the screen off.
+     */
+    public void setBackground(boolean background) {
+        if (background != mBackground) {
+            mBackground = background;
+            updatePollingMode();
+        }
+    }
+
+    private boolean getHfcData(UsbDeviceConnection connection, int addr, int size, byte[] resData, String name) {
+        int res = readHfcMemory(connection, addr, size, resData);
         if (res >= 0) {
             if (DEBUG) {
                 Log.d(TAG, "controlTransfer success ("+res+"): " + bytesToHex(resData, size) + " ("+name+")");
@@ -215,22 +568,28 @@ public class HubManager {
         return false;
     }
 
-    private boolean updateHfcData() {
-        boolean res = getHfcData(PDPB_THERMAL_PORT_STATUS, 2, mThermalStateBuff, "THERMAL_PORT_STATUS");
+    /**
+     * @param state connection state the poll has been started in
+     */
+    private boolean updateHfcData(UsbDeviceConnection connection, long state) {
+        boolean res = getHfcData(connection, PDPB_THERMAL_PORT_STATUS, HubFrame.THERMAL_PORT_STATUS_SIZE, mThermalStateBuff, "THERMAL_PORT_STATUS");
         if (res) {
-            res = getHfcData(PDPB_P1_PORT_PARAMS, 8, mP1Buffs.mPortParamsBuff, "P1_PORT_PARAMS");
+            res = getHfcData(connection, PDPB_P1_PORT_PARAMS, HubFrame.PORT_PARAMS_SIZE, mP1Buffs.mPortParamsBuff, "P1_PORT_PARAMS");
         }
         if (res) {
-            res = getHfcData(PDPB_P3_PORT_PARAMS, 8, mP3Buffs.mPortParamsBuff, "P3_PORT_PARAMS");
+            res = getHfcData(connection, PDPB_P3_PORT_PARAMS, HubFrame.PORT_PARAMS_SIZE, mP3Buffs.mPortParamsBuff, "P3_PORT_PARAMS");
         }
-        if (res) {
-            res = getHfcData(PDPB_P1_PORT_POWER_ALLOCATION, 4, mP1Buffs.mPortPowerBuff, "P1_PORT_POWER_ALLOCATION");
+        //Low-power polls only look for port changes. Power allocation and system config change rarely.
+        boolean fullRead = (mPolls.getMode() != PollCounter.MODE_LOW_POWER)
+                || (mLowPowerPolls++ % LOW_POWER_FULL_READ_EVERY) == 0;
+        if (res && fullRead) {
+            res = getHfcData(connection, PDPB_P1_PORT_POWER_ALLOCATION, HubFrame.PORT_POWER_ALLOCATION_SIZE, mP1Buffs.mPortPowerBuff, "P1_PORT_POWER_ALLOCATION");
         }
-        if (res) {
-            res = getHfcData(PDPB_P3_PORT_POWER_ALLOCATION, 4, mP3Buffs.mPortPowerBuff, "P3_PORT_POWER_ALLOCATION");
+        if (res && fullRead) {
+            res = getHfcData(connection, PDPB_P3_PORT_POWER_ALLOCATION, HubFrame.PORT_POWER_ALLOCATION_SIZE, mP3Buffs.mPortPowerBuff, "P3_PORT_POWER_ALLOCATION");
         }
-        if (res) {
-            res = getHfcData(PDPB_PB_SYS_CONFIG, 4, mSysConfBuff, "PB_SYS_CONFIG");
+        if (res && fullRead) {
+            res = getHfcData(connection, PDPB_PB_SYS_CONFIG, HubFrame.PB_SYS_CONFIG_SIZE, mSysConfBuff, "PB_SYS_CONFIG");
         }
 
         if (res) {
@@ -238,13 +597,17 @@ public class HubManager {
                 Log.d(TAG, "updateHfcData() success.");
             }
             mControlTransferAttempts = CONTROL_TRANSFER_ATTEMPTS;
-            parseHfcData(mSysConfBuff, mP1Buffs, mP3Buffs);
+            if (ConnectionState.state(state) != ConnectionState.POLLING) {
+                mState.transition(state, ConnectionState.POLLING);
+            }
+            parseHfcData(SystemClock.elapsedRealtimeNanos(), fullRead, mSysConfBuff, mP1Buffs, mP3Buffs);
             return true;
         } else {
             Log.e(TAG, "updateHfcData() error: "+(--mControlTransferAttempts)+" attempts left.");
-            if (mListener!=null) {
-                mListener.onHubStatus(HUB_STATUS_ERRORS);
+            if (ConnectionState.state(state) != ConnectionState.DEGRADED) {
+                mState.transition(state, ConnectionState.DEGRADED);
             }
+            notifyHubStatus(HUB_STATUS_ERRORS);
             if (mControlTransferAttempts > 0) {
                 return true;
             }
@@ -252,36 +615,16 @@ public class HubManager {
         }
     }
 
-    private ThermalState parseThermalHfcData1(byte[] data) {
-        ThermalState st = ThermalState.NOT_IMPLEMENTED;
-        switch (data[0]&0x03) {
-            case 0x00:
-                st = ThermalState.NORMAL;
-                break;
-            case 0x01:
-                st = ThermalState.WARNING;
-                break;
-            case 0x02:
-                st = ThermalState.SHUTDOWN;
-                break;
+    private void notifyHubStatus(int hubStatus) {
+        mTelemetry.publishHubStatus(hubStatus);
+        if (hubStatus != mHubStatus) {
+            mHubStatus = hubStatus;
+            //Telemetry readers are notified on status changes only. Frames are polled from the shared memory.
+            mContext.getContentResolver().notifyChange(TelemetryProvider.CONTENT_URI, null);
         }
-        return st;
-    }
-
-    private ThermalState parseThermalHfcData2(byte[] data) {
-        ThermalState st = ThermalState.NOT_IMPLEMENTED;
-        switch (( (data[0]&0xFF) >> 4) & 0x03) {
-            case 0x00:
-                st = ThermalState.NORMAL;
-                break;
-            case 0x01:
-                st = ThermalState.WARNING;
-                break;
-            case 0x02:
-                st = ThermalState.SHUTDOWN;
-                break;
+        if (mListener!=null) {
+            mListener.onHubStatus(hubStatus);
         }
-        return st;
     }
 
     private String getRP_RD(byte b) {
@@ -293,153 +636,151 @@ public class HubManager {
         }
     }
 
-    private void parseHfcData(byte[] sysConfBuff, PortBuffers p1, PortBuffers p2) {
-        //ThermalStatus
-        ThermalState ts1 = parseThermalHfcData1(mThermalStateBuff);
-        ThermalState ts2 = parseThermalHfcData2(mThermalStateBuff);
-
-        //parse params
-        boolean attached1 = ((p1.mPortParamsBuff[0] & 0x01) == 0x01);
-        boolean attached2 = ((p2.mPortParamsBuff[0] & 0x01) == 0x01);
-        boolean orientation1 = ((p1.mPortParamsBuff[0] & 0x02) == 0x02);
-        boolean orientation2 = ((p2.mPortParamsBuff[0] & 0x02) == 0x02);
-
-        byte rp_rd1 = (byte)((p1.mPortParamsBuff[0] & 0x0C) >> 2);
-        byte rp_rd2 = (byte)((p2.mPortParamsBuff[0] & 0x0C) >> 2);
-
-        boolean negotiated1 = ((p1.mPortParamsBuff[0] & 0x10) == 0x10);
-        boolean negotiated2 = ((p2.mPortParamsBuff[0] & 0x10) == 0x10);
-        boolean cap_mismatch1 = ((p1.mPortParamsBuff[0] & 0x20) == 0x20);
-        boolean cap_mismatch2 = ((p2.mPortParamsBuff[0] & 0x20) == 0x20);
-        boolean contract_operate1 = ((p1.mPortParamsBuff[7] & 0x40) == 0x40);
-        boolean contract_operate2 = ((p2.mPortParamsBuff[7] & 0x40) == 0x40);
-
-        ByteBuffer bb1 = ByteBuffer.wrap(p1.mPortParamsBuff).order(ByteOrder.LITTLE_ENDIAN);
-        ByteBuffer bb2 = ByteBuffer.wrap(p2.mPortParamsBuff).order(ByteOrder.LITTLE_ENDIAN);
-        //V_NEGOTIATED (15:6 bits)
-        int negot_v_now1 = ((0xFFC0 & bb1.getShort(0)) >> 6); // 0.05V/50mV units
-        int negot_v_now2 = ((0xFFC0 & bb2.getShort(0)) >> 6); // 0.05V/50mV units
-        //I_NEGOTIATED (25:16 bits)
-        int negot_i_now1 = (0x03FF & bb1.getShort(2)); // 0.01A/10mA units
-        int negot_i_now2 = (0x03FF & bb2.getShort(2)); // 0.01A/10mA units
-        //V_OPERATIONAL (41:32 bits)
-        int operate_v_now1 = (0x03FF & bb1.getShort(4)); // 0.02V/20mV units
-        int operate_v_now2 = (0x03FF & bb2.getShort(4)); // 0.02V/20mV units
-
-        //Max system power
-        ByteBuffer sc = ByteBuffer.wrap(sysConfBuff).order(ByteOrder.LITTLE_ENDIAN);
-        int sys_pwr = (0x00FFFFFF & sc.getInt()); // The max shared power capacity (in mW)
-
-        //Max ports power
-        ByteBuffer pp1 = ByteBuffer.wrap(p1.mPortPowerBuff).order(ByteOrder.LITTLE_ENDIAN);
-        ByteBuffer pp2 = ByteBuffer.wrap(p2.mPortPowerBuff).order(ByteOrder.LITTLE_ENDIAN);
-        int max_pwr1 = (0x03FF & pp1.getShort(0)); // 0.5W/500mW units
-        int max_pwr2 = (0x03FF & pp2.getShort(0)); // 0.5W/500mW units
-        boolean pb_enabled1 = ((p1.mPortPowerBuff[3] & 0x08) == 0x08);
-        boolean pb_enabled2 = ((p2.mPortPowerBuff[3] & 0x08) == 0x08);
-
-        /**
-         * Fixes.
-         * Need to tidy up the values in case of USB-C (non-PD) attach
-         * Cosmetic: The power balancing algorithm does not zero the previously-negotiated V & I upon
-         * detach which makes new USB-C (non-PD) connections take the previous negotiated power value in UI.
-         * Workaround: If attached but not "negotiated", set V=5V and I=3A (this may not accurately
-         * reflect the true VBUS state as "negotiated" is a context of the power balancing algorithm
-         * and not any explicit PD contract).
-        */
-        float res_v1 = contract_operate1 ? operate_v_now1*VOLTS_OPERATE_K : negot_v_now1*VOLTS_K;
-        float res_i1 = negot_i_now1*AMPS_K;
-        if (attached1 && !negotiated1) {
-            res_v1 = DEFAULT_V;
-            res_i1 = DEFAULT_I;
-        }
-        float res_v2 = contract_operate2 ? operate_v_now2*VOLTS_OPERATE_K : negot_v_now2*VOLTS_K;
-        float res_i2 = negot_i_now2*AMPS_K;
-        if (attached2 && !negotiated2) {
-            res_v2 = DEFAULT_V;
-            res_i2 = DEFAULT_I;
-        }
+    /**
+     * @param fullRead false if power allocations and system config weren't read by this poll
+     */
+    private void parseHfcData(long timestampNs, boolean fullRead, byte[] sysConfBuff, PortBuffers p1, PortBuffers p2) {
+        mFrame.decode(timestampNs, mThermalStateBuff, sysConfBuff,
+                p1.mPortParamsBuff, p1.mPortPowerBuff, p2.mPortParamsBuff, p2.mPortPowerBuff);
+        HubFrame.PortFrame f1 = mFrame.ports[0];
+        HubFrame.PortFrame f2 = mFrame.ports[1];
 
         if (mListener!=null) {
-            mListener.onPortStatus(1, attached1, negotiated1, orientation1, cap_mismatch1,
-                    (float)(max_pwr1*PORT_WATTS_K),
-                    res_v1,
-                    res_i1,
-                    (res_v1 * res_i1),
-                    (float)(sys_pwr/SYS_WATTS_K),
-                    ts1);
-            mListener.onPortStatus(2, attached2, negotiated2, orientation2, cap_mismatch2,
-                    (float)(max_pwr2*PORT_WATTS_K),
-                    res_v2,
-                    res_i2,
-                    (res_v2 * res_i2),
-                    (float)(sys_pwr/SYS_WATTS_K),
-                    ts2);
+            mListener.onPortStatus(1, f1.attached, f1.negotiated, f1.orientation, f1.capMismatch,
+                    f1.maxPower,
+                    f1.voltage,
+                    f1.current,
+                    f1.power,
+                    mFrame.sysPower,
+                    f1.thermal);
+            mListener.onPortStatus(2, f2.attached, f2.negotiated, f2.orientation, f2.capMismatch,
+                    f2.maxPower,
+                    f2.voltage,
+                    f2.current,
+                    f2.power,
+                    mFrame.sysPower,
+                    f2.thermal);
         }
+
+        //Cross-process export
+        mTelemetry.publishFrame(mFrame);
+
+        mRecorder.record(timestampNs, fullRead ? 0 : CaptureFile.FLAG_PARTIAL, mThermalStateBuff, sysConfBuff,
+                p1.mPortParamsBuff, p1.mPortPowerBuff, p2.mPortParamsBuff, p2.mPortPowerBuff);
+
+        //Burst capture and full rate polling on port edges
+        if (mPrevFrameValid) {
+            for (int p = 0; p < HubFrame.PORTS; ++p) {
+                int trigger = edgeTrigger(mPrevFrame.ports[p], mFrame.ports[p]);
+                if (trigger >= 0) {
+                    startBurstCapture(p + 1, trigger);
+                    mFullRateUntilNs = timestampNs + FULL_RATE_HOLD_NS;
+                } else if (mFrame.ports[p].negotiated != mPrevFrame.ports[p].negotiated) {
+                    mFullRateUntilNs = timestampNs + FULL_RATE_HOLD_NS;
+                }
+            }
+        }
+        mPrevFrame.copyFrom(mFrame);
+        mPrevFrameValid = true;
+
+        //PD negotiation timing. Detached ports are watched at burst rate while polling at full rate.
+        mP1Negotiation.onPoll(timestampNs, f1);
+        mP3Negotiation.onPoll(timestampNs, f2);
+        boolean lowPower = isLowPower();
+        armBurst(1, f1, lowPower);
+        armBurst(2, f2, lowPower);
+
+        //Alert rules
+        if (mAlerts != null) {
+            mAlerts.onFrame(mFrame);
+        }
+
+        //Energy accounting
+        boolean sessionEnded = mP1Energy.addSample(timestampNs, f1.attached, f1.power);
+        sessionEnded |= mP3Energy.addSample(timestampNs, f2.attached, f2.power);
+        if (sessionEnded || (timestampNs - mEnergySavedNs) >= ENERGY_SAVE_PERIOD_NS) {
+            saveEnergy(timestampNs);
+        }
+
+        //Windowed statistics
+        if (f1.attached) {
+            mP1Stats.add(timestampNs, f1.power, f1.voltage, f1.current);
+        }
+        if (f2.attached) {
+            mP3Stats.add(timestampNs, f2.power, f2.voltage, f2.current);
+        }
+
         if (DEBUG_V) {
             Log.d(TAG, "----------------------------------------");
-            Log.d(TAG, String.format("SYS: sys_pwr=%f W", sys_pwr/SYS_WATTS_K));
-            //Log Port1
-            Log.d(TAG, "----------------------------------------");
-            Log.d(TAG, String.format("Port1: max_pwr=%f W", max_pwr1*PORT_WATTS_K));
-            Log.d(TAG, String.format("Port1: pb_enabled=%s", pb_enabled1));
-            Log.d(TAG, String.format("Port1: voltage_negot=%f", negot_v_now1*VOLTS_K));
-            Log.d(TAG, String.format("Port1: voltage_operate=%f", operate_v_now1*VOLTS_OPERATE_K));
-            Log.d(TAG, String.format("Port1: current_negot=%f", negot_i_now1*AMPS_K));
-            Log.d(TAG, String.format("Port1: volt_res=%f", res_v1));
-            Log.d(TAG, String.format("Port1: curr_res=%f", res_i1));
-            Log.d(TAG, String.format("Port1: power=%f", (res_v1 * res_i1) ));
-            Log.d(TAG, String.format("Port1: attached=%s", attached1));
-            Log.d(TAG, String.format("Port1: negotiated=%s", negotiated1));
-            Log.d(TAG, String.format("Port1: contract_operate=%s", contract_operate1));
-            Log.d(TAG, String.format("Port1: orientation=%s", orientation1));
-            Log.d(TAG, String.format("Port1: cap_mismatch=%s", cap_mismatch1));
-            Log.d(TAG, String.format("Port1: rp_rd=%s", getRP_RD(rp_rd1)));
-            Log.d(TAG, String.format("Port1: ThermalState=%s", ts1));
-            //Log Port2
-            Log.d(TAG, "----------------------------------------");
-            Log.d(TAG, String.format("Port3: max_pwr=%f W", max_pwr2*PORT_WATTS_K));
-            Log.d(TAG, String.format("Port3: pb_enabled=%s", pb_enabled2));
-            Log.d(TAG, String.format("Port3: voltage_negot=%f", negot_v_now2*VOLTS_K));
-            Log.d(TAG, String.format("Port3: voltage_operate=%f", operate_v_now2*VOLTS_OPERATE_K));
-            Log.d(TAG, String.format("Port3: current_negot=%f", negot_i_now2*AMPS_K));
-            Log.d(TAG, String.format("Port3: volt_res=%f", res_v2));
-            Log.d(TAG, String.format("Port3: curr_res=%f", res_i2));
-            Log.d(TAG, String.format("Port3: power=%f", (res_v2 * res_i2) ));
-            Log.d(TAG, String.format("Port3: attached=%s", attached2));
-            Log.d(TAG, String.format("Port3: negotiated=%s", negotiated2));
-            Log.d(TAG, String.format("Port3: contract_operate=%s", contract_operate2));
-            Log.d(TAG, String.format("Port3: orientation=%s", orientation2));
-            Log.d(TAG, String.format("Port3: cap_mismatch=%s", cap_mismatch2));
-            Log.d(TAG, String.format("Port3: rp_rd=%s", getRP_RD(rp_rd2)));
-            Log.d(TAG, String.format("Port3: ThermalState=%s", ts2));
+            Log.d(TAG, String.format("SYS: sys_pwr=%f W", mFrame.sysPower));
+            logPort("Port1", f1, mP1Energy);
+            logPort("Port3", f2, mP3Energy);
             Log.d(TAG, "----------------------------------------");
         }
     }
 
+    private void armBurst(int port, HubFrame.PortFrame f, boolean lowPower) {
+        if (!lowPower && !f.attached) {
+            mBurst.arm(port, ((port==1) ? mP1Buffs : mP3Buffs).mPortPowerBuff);
+        } else {
+            mBurst.disarm(port);
+        }
+    }
+
+    private static int edgeTrigger(HubFrame.PortFrame prev, HubFrame.PortFrame f) {
+        if (f.attached != prev.attached) {
+            return f.attached ? BurstCapture.TRIGGER_ATTACH : BurstCapture.TRIGGER_DETACH;
+        }
+        if (f.capMismatch && !prev.capMismatch) {
+            return BurstCapture.TRIGGER_CAP_MISMATCH;
+        }
+        if (f.thermal != prev.thermal) {
+            return BurstCapture.TRIGGER_THERMAL;
+        }
+        return -1;
+    }
+
+    private void logPort(String name, HubFrame.PortFrame f, EnergyAccumulator energy) {
+        Log.d(TAG, "----------------------------------------");
+        Log.d(TAG, String.format("%s: max_pwr=%f W", name, f.maxPower));
+        Log.d(TAG, String.format("%s: pb_enabled=%s", name, f.pbEnabled));
+        Log.d(TAG, String.format("%s: voltage_negot=%f", name, f.negotiatedVoltage));
+        Log.d(TAG, String.format("%s: voltage_operate=%f", name, f.operationalVoltage));
+        Log.d(TAG, String.format("%s: current_negot=%f", name, f.negotiatedCurrent));
+        Log.d(TAG, String.format("%s: volt_res=%f", name, f.voltage));
+        Log.d(TAG, String.format("%s: curr_res=%f", name, f.current));
+        Log.d(TAG, String.format("%s: power=%f", name, f.power));
+        Log.d(TAG, String.format("%s: attached=%s", name, f.attached));
+        Log.d(TAG, String.format("%s: negotiated=%s", name, f.negotiated));
+        Log.d(TAG, String.format("%s: contract_operate=%s", name, f.contractOperate));
+        Log.d(TAG, String.format("%s: orientation=%s", name, f.orientation));
+        Log.d(TAG, String.format("%s: cap_mismatch=%s", name, f.capMismatch));
+        Log.d(TAG, String.format("%s: rp_rd=%s", name, getRP_RD(f.rpRd)));
+        Log.d(TAG, String.format("%s: ThermalState=%s", name, f.thermal));
+        Log.d(TAG, String.format("%s: session=%f Wh, lifetime=%f Wh", name, energy.getSessionWh(), energy.getLifetimeWh()));
+    }
+
 
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
             Log.d(TAG, "onReceive("+intent+")");
             String action = intent.getAction();
             if (ACTION_USB_PERMISSION.equals(action)) {
-                synchronized (this) {
-                    UsbDevice device = (UsbDevice)intent.getParcelableExtra(EXTRA_DEVICE);
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (device != null) {
-                            Log.d(TAG, "permission GRANTED for device " + device.getDeviceName());
-                            mHfcDevice = device;
-                            connectHfc();
-                        }
-                    }
-                    else {
-                        Log.d(TAG, "permission denied for device " + device.getDeviceName());
-                        mHfcDevice = null;
-                        mHfcConnection = null;
-                        if (mListener!=null) {
-                            mListener.onHubStatus(HUB_STATUS_DISCONNECTED);
-                        }
-                    }
+                UsbDevice device = (UsbDevice)intent.getParcelableExtra(EXTRA_DEVICE);
+                long state = mState.get();
+                int generation = intent.getIntExtra(EXTRA_GENERATION, -1);
+                if (!ConnectionState.isAwaitingPermission(state, generation)) {
+                    Log.d(TAG, "Ignore stale permission result (generation " + generation + ")");
+                    return;
+                }
+                mHandler.removeCallbacks(mPermissionTimeout);
+                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false) && device != null) {
+                    Log.d(TAG, "permission GRANTED for device " + device.getDeviceName());
+                    connectHfc(device, state);
+                } else {
+                    Log.d(TAG, "permission denied for device " + (device != null ? device.getDeviceName() : null));
+                    mState.transition(state, ConnectionState.CLOSED);
+                    notifyHubStatus(HUB_STATUS_DISCONNECTED);
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
                 UsbDevice device = (UsbDevice)intent.getParcelableExtra(EXTRA_DEVICE);
@@ -448,13 +789,110 @@ public class HubManager {
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
                 UsbDevice device = (UsbDevice)intent.getParcelableExtra(EXTRA_DEVICE);
-                if (isHfcDevice(device)) {
+                if (isHfcDevice(device) && ConnectionState.state(mState.get()) != ConnectionState.CLOSED) {
                     stop();
                 }
             }
         }
     };
 
+    private void loadAlertRules() {
+        try (InputStream in = mContext.getResources().openRawResource(R.raw.alert_rules)) {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buff = new byte[1024];
+            int n;
+            while ((n = in.read(buff)) > 0) {
+                text.write(buff, 0, n);
+            }
+            mAlerts = new AlertEngine(AlertRules.compile(text.toString("UTF-8")), HubFrame.PORTS);
+            mAlerts.setListener(mAlertDispatcher);
+            Log.d(TAG, mAlerts.getRules().size() + " alert rules loaded");
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Can't load alert rules: " + e.getMessage());
+            mAlerts = null;
+        }
+    }
+
+    private final BurstSampler.IBurstListener mBurstDispatcher = new BurstSampler.IBurstListener() {
+        @Override
+        public void onBurstCaptured(BurstCapture capture) {
+            //PD negotiation timing at burst resolution
+            getNegotiation(capture.getPort()).onCapture(capture);
+            if (mBurstListener != null) {
+                mBurstListener.onBurstCaptured(capture);
+            }
+        }
+    };
+
+    private final AlertEngine.IAlertListener mAlertDispatcher = new AlertEngine.IAlertListener() {
+        @Override
+        public void onAlert(String rule, int port, boolean active, long timestampNs) {
+            Log.w(TAG, "Alert " + rule + (port == 0 ? "" : (port == 1 ? " Port1" : " Port3")) + (active ? " raised" : " cleared"));
+            if (mAlertListener != null) {
+                mAlertListener.onAlert(rule, port, active, timestampNs);
+            }
+        }
+    };
+
+    private void restoreEnergy() {
+        SharedPreferences prefs = mContext.getSharedPreferences(ENERGY_PREFS, Context.MODE_PRIVATE);
+        restoreEnergy(prefs, "p1_", mP1Energy);
+        restoreEnergy(prefs, "p3_", mP3Energy);
+    }
+
+    private static void restoreEnergy(SharedPreferences prefs, String prefix, EnergyAccumulator energy) {
+        energy.restore(Double.longBitsToDouble(prefs.getLong(prefix + "wh", 0)),
+                Double.longBitsToDouble(prefs.getLong(prefix + "wh_c", 0)),
+                prefs.getLong(prefix + "duration_ns", 0),
+                prefs.getFloat(prefix + "peak_w", 0),
+                prefs.getInt(prefix + "sessions", 0));
+    }
+
+    private void saveEnergy(long timestampNs) {
+        mEnergySavedNs = timestampNs;
+        SharedPreferences.Editor editor = mContext.getSharedPreferences(ENERGY_PREFS, Context.MODE_PRIVATE).edit();
+        saveEnergy(editor, "p1_", mP1Energy);
+        saveEnergy(editor, "p3_", mP3Energy);
+        editor.apply();
+    }
+
+    private static void saveEnergy(SharedPreferences.Editor editor, String prefix, EnergyAccumulator energy) {
+        editor.putLong(prefix + "wh", Double.doubleToRawLongBits(energy.getLifetimeWh()));
+        editor.putLong(prefix + "wh_c", Double.doubleToRawLongBits(energy.getLifetimeWhCompensation()));
+        editor.putLong(prefix + "duration_ns", energy.getLifetimeDurationNs());
+        editor.putFloat(prefix + "peak_w", energy.getLifetimePeakW());
+        editor.putInt(prefix + "sessions", energy.getSessionCount());
+    }
+
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "onReceive("+intent+")");
+            String action = intent.getAction();
+            if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                mScreenOff = false;
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                mScreenOff = true;
+            } else if (PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED.equals(action)) {
+                mDeviceIdle = mPowerManager.isDeviceIdleMode();
+            }
+            updatePollingMode();
+        }
+    };
+
+    private void updatePollingMode() {
+        if (ConnectionState.isConnected(mState.get())) {
+            if (isLowPower()) {
+                //Switch at the next poll
+                if (mPolls.getMode() == PollCounter.MODE_FULL) {
+                    scheduleUpdate();
+                }
+            } else if (mPolls.getMode() == PollCounter.MODE_LOW_POWER) {
+                //Back to full rate right now
+                mHandler.post(mDataUpdater);
+            }
+        }
+    }
+
     private boolean isHfcDevice(UsbDevice device) {
         if (device!=null) {
             int vid = device.getVendorId();
@@ -470,9 +908,13 @@ public class HubManager {
 
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
     public static String bytesToHex(byte[] bytes, int len) {
+        return bytesToHex(bytes, 0, len);
+    }
+
+    public static String bytesToHex(byte[] bytes, int off, int len) {
         char[] hexChars = new char[len * 2];
         for (int j = 0; j < len; j++) {
-            int v = bytes[j] & 0xFF;
+            int v = bytes[off + j] & 0xFF;
             hexChars[j * 2] = HEX_ARRAY[v >>> 4];
             hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
         }
@@ -0,0 +1,104 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.PrintWriter;
+
+/**
+ * Histogram of latencies with power-of-two millisecond buckets:
+ * [0,1ms) [1,2ms) [2,4ms) ... [2^(BUCKETS-2)ms, inf).
+ */
+class LatencyHistogram {
+    static final int BUCKETS = 20; //last finite bound: 2^18 ms (~4.4 min)
+
+    private static final long MS_NS = 1000L * 1000;
+
+    private final int[] mBuckets = new int[BUCKETS];
+    private int mCount;
+    private long mSumNs;
+    private long mMinNs = Long.MAX_VALUE;
+    private long mMaxNs;
+
+    static int bucketOf(long latencyNs) {
+        long ms = latencyNs / MS_NS;
+        if (ms <= 0) {
+            return 0;
+        }
+        int b = 64 - Long.numberOfLeadingZeros(ms); //1 -> 1, 2..3 -> 2, 4..7 -> 3 ...
+        return (b < BUCKETS) ? b : BUCKETS - 1;
+    }
+
+    //Upper bound of the bucket (ms), Long.MAX_VALUE for the last one
+    static long bucketUpperMs(int bucket) {
+        return (bucket < BUCKETS - 1) ? (1L << bucket) : Long.MAX_VALUE;
+    }
+
+    void add(long latencyNs) {
+        if (latencyNs < 0) {
+            latencyNs = 0;
+        }
+        mBuckets[bucketOf(latencyNs)]++;
+        mCount++;
+        mSumNs += latencyNs;
+        if (latencyNs < mMinNs) mMinNs = latencyNs;
+        if (latencyNs > mMaxNs) mMaxNs = latencyNs;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getMinNs() {
+        return (mCount == 0) ? 0 : mMinNs;
+    }
+
+    long getMaxNs() {
+        return mMaxNs;
+    }
+
+    long getMeanNs() {
+        return (mCount == 0) ? 0 : mSumNs / mCount;
+    }
+
+    int getBucket(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * @return upper bound (ms) of the bucket holding the q quantile, capped by the max value.
+     */
+    long quantileMs(float q) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(q * mCount);
+        long cumulative = 0;
+        for (int b = 0; b < BUCKETS; ++b) {
+            cumulative += mBuckets[b];
+            if (cumulative >= target) {
+                return Math.min(bucketUpperMs(b), mMaxNs / MS_NS);
+            }
+        }
+        return mMaxNs / MS_NS;
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix);
+        pw.print("n=" + mCount);
+        if (mCount == 0) {
+            pw.println();
+            return;
+        }
+        pw.print(" min=" + getMinNs() / MS_NS + "ms mean=" + getMeanNs() / MS_NS + "ms max=" + mMaxNs / MS_NS + "ms");
+        pw.print(" p50<=" + quantileMs(0.5f) + "ms p95<=" + quantileMs(0.95f) + "ms");
+        pw.print(" [");
+        boolean first = true;
+        for (int b = 0; b < BUCKETS; ++b) {
+            if (mBuckets[b] == 0) {
+                continue;
+            }
+            if (!first) pw.print(' ');
+            first = false;
+            pw.print("<" + (b < BUCKETS - 1 ? bucketUpperMs(b) + "ms" : "inf") + ":" + mBuckets[b]);
+        }
+        pw.println("]");
+    }
+}
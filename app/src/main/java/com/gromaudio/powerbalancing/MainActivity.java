@@ -4,13 +4,21 @@ import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.util.Log;
-import android.view.View;
+import android.view.Choreographer;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.bumptech.glide.Glide;
-
+import com.bumptech.glide.RequestManager;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.Random;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -18,6 +26,7 @@ import androidx.constraintlayout.widget.ConstraintLayout;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import butterknife.OnLongClick;
 
 public class MainActivity extends AppCompatActivity implements HubManager.IHubListener {
     private static final String TAG = "PB:MainActivity";
@@ -64,11 +73,35 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
     ConstraintLayout mPort1Connected;
     @BindView(R.id.port1_thermal_state)
     TextView mPort1ThermalState;
+    @BindView(R.id.port1_chart)
+    PowerChartView mPort1Chart;
+    @BindView(R.id.port2_chart)
+    PowerChartView mPort2Chart;
+    @BindView(R.id.system_chart)
+    PowerChartView mSystemChart;
 
     private ConnectionPowerState mPort1 = new ConnectionPowerState();
     private ConnectionPowerState mPort2 = new ConnectionPowerState();
     private float mMaxTotalPower = MAX_TOTAL_POWER;
     private float mRemainingTotalPower = MAX_TOTAL_POWER;
+    private float mPort1Power;
+
+    //Views are updated at most once per display frame, with the latest state.
+    private PortViewBinding mPort1View;
+    private PortViewBinding mPort2View;
+    private TextBinding mMaximumTotalSystemPowerText;
+    private TextBinding mRemainingTotalSystemPowerText;
+    private Choreographer mChoreographer;
+    private boolean mRenderScheduled;
+    private boolean mStopped = true; //Not visible: keep the state, don't render
+    private boolean mDestroyed;
+    private final Choreographer.FrameCallback mRenderCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mRenderScheduled = false;
+            render();
+        }
+    };
 
     private boolean mRandomDebugMode = false;
 
@@ -89,10 +122,14 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        //close() reports DISCONNECTED through onHubStatus(), which must not schedule a frame anymore
+        mDestroyed = true;
         if (mHubManager!=null) {
             mHubManager.close();
             mHubManager = null;
         }
+        mChoreographer.removeFrameCallback(mRenderCallback);
+        mRenderScheduled = false;
     }
 
     @Override
@@ -113,8 +150,37 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
             Log.d(TAG, "onPause()");
         }
         super.onPause();
+        //Keep monitoring in background. HubManager drops to low-power polling once we are stopped.
+    }
+
+    @Override
+    protected void onStart() {
+        if (DEBUG) {
+            Log.d(TAG, "onStart()");
+        }
+        super.onStart();
+        mStopped = false;
+        //Background samples weren't charted, restart the sweeps
+        mPort1Chart.clear();
+        mPort2Chart.clear();
+        mSystemChart.clear();
+        render();
         if (mHubManager!=null) {
-            mHubManager.stop();
+            mHubManager.setBackground(false);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        if (DEBUG) {
+            Log.d(TAG, "onStop()");
+        }
+        super.onStop();
+        mStopped = true;
+        mChoreographer.removeFrameCallback(mRenderCallback);
+        mRenderScheduled = false;
+        if (mHubManager!=null) {
+            mHubManager.setBackground(true);
         }
     }
 
@@ -129,78 +195,154 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
         }
     }
 
+    //adb shell dumpsys activity com.gromaudio.powerbalancing/.MainActivity [snapshot|snapshot-diff|record|stop-record]
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mHubManager==null) {
+            return;
+        }
+        String cmd = (args != null && args.length > 0) ? args[0] : "";
+        if ("snapshot".equals(cmd)) {
+            writer.println(prefix + (mHubManager.takeMemorySnapshot() ? "Memory snapshot started, saved to " + getDumpDir()
+                    : "Not connected or a snapshot is running"));
+        } else if ("snapshot-diff".equals(cmd)) {
+            mHubManager.writeMemorySnapshotDiff(writer);
+        } else if ("record".equals(cmd)) {
+            startRecording(prefix, writer);
+        } else if ("stop-record".equals(cmd)) {
+            mHubManager.stopRecording();
+            writer.println(prefix + "Recording stopped");
+        }
+        mHubManager.dump(prefix, writer);
+    }
+
+    //Raw polls for CaptureAnalytics, until stop-record or disconnect
+    private void startRecording(String prefix, PrintWriter writer) {
+        File file = new File(getDumpDir(), "capture-" + System.currentTimeMillis() + ".pbc");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            if (mHubManager.startRecording(os)) {
+                writer.println(prefix + "Recording to " + file);
+                return;
+            }
+            writer.println(prefix + "Not connected");
+        } catch (IOException e) {
+            writer.println(prefix + "Can't record: " + e.getMessage());
+        }
+        if (os != null) {
+            try {
+                os.close();
+            } catch (IOException e) {
+                //Nothing recorded
+            }
+        }
+        file.delete();
+    }
+
+    //Snapshots and recordings, pulled with adb
+    private File getDumpDir() {
+        File dir = getExternalFilesDir(null);
+        return (dir != null) ? dir : getFilesDir();
+    }
+
     void init() {
+        RequestManager glide = Glide.with(this);
+        String wFormat = getString(R.string.w);
+        String vaFormat = getString(R.string.va);
+        mPort1View = new PortViewBinding(true, mPort1Connected, mPort1NoDeviceConnected, mPort1ThermalState,
+                mPort1ConnectionSpeed, mPort1Progress, mPort1ConnectedW, mPort1ConnectedVa, mPort1AvailablePortPower,
+                wFormat, vaFormat, glide);
+        mPort2View = new PortViewBinding(false, mPort2Connected, mPort2NoDeviceConnected, mPort2ThermalState,
+                mPort2ConnectionSpeed, mPort2Progress, mPort2ConnectedW, mPort2ConnectedVa, mPort2AvailablePortPower,
+                wFormat, vaFormat, glide);
+        mMaximumTotalSystemPowerText = new TextBinding(mMaximumTotalSystemPower, getString(R.string.maximum_total_system_power));
+        mRemainingTotalSystemPowerText = new TextBinding(mRemainingTotalSystemPower, getString(R.string.remaining_total_system_power));
+        mChoreographer = Choreographer.getInstance();
+        mPort1Chart.setLineColor(getResources().getColor(R.color.blue, null));
+        mPort2Chart.setLineColor(getResources().getColor(R.color.blue, null));
+        mSystemChart.setLineColor(getResources().getColor(R.color.green, null));
+        mPort1Chart.setMaxValue(DEFAULT_MAX_PORT_POWER);
+        mPort2Chart.setMaxValue(DEFAULT_MAX_PORT_POWER);
+        mSystemChart.setMaxValue(MAX_TOTAL_POWER);
+
         setThermalState(Port.PORT_1, ThermalState.NOT_IMPLEMENTED);
         setThermalState(Port.PORT_2, ThermalState.NOT_IMPLEMENTED);
         setDisconnected(Port.PORT_1, DEFAULT_MAX_PORT_POWER);
         setDisconnected(Port.PORT_2, DEFAULT_MAX_PORT_POWER);
-
-        mMaximumTotalSystemPower.setText(getString(R.string.maximum_total_system_power, mMaxTotalPower));
-        mRemainingTotalSystemPower.setText(getString(R.string.remaining_total_system_power, mRemainingTotalPower));
+        render();
 
         mHubManager = new HubManager(getBaseContext(), this);
+        mHubManager.setAlertListener(new AlertEngine.IAlertListener() {
+            @Override
+            public void onAlert(String rule, int port, boolean active, long timestampNs) {
+                if (active) {
+                    String where = (port == 0) ? "" : (port == 1 ? " (Port1)" : " (Port3)");
+                    Toast.makeText(MainActivity.this, "Alert: " + rule + where, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+        mHubManager.setMemorySnapshotListener(new MemorySnapshotter.ISnapshotListener() {
+            @Override
+            public void onSnapshot(int size, float bytesPerSecond, int changedBytes) {
+                if (mHubManager==null) {
+                    return;
+                }
+                File file = new File(getDumpDir(), "snapshot-" + System.currentTimeMillis() + ".bin");
+                try (OutputStream os = new FileOutputStream(file)) {
+                    mHubManager.writeMemorySnapshot(os);
+                    Log.d(TAG, String.format("Memory snapshot: %d bytes at %.0f B/s, %d changed -> %s",
+                            size, bytesPerSecond, changedBytes, file));
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't save memory snapshot: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onSnapshotFailed() {
+                Log.e(TAG, "Memory snapshot failed");
+            }
+        });
     }
 
     void setThermalState(Port port, ThermalState thermalState) {
-        TextView portThermalState = port == Port.PORT_1 ? mPort1ThermalState : mPort2ThermalState;
-        portThermalState.setBackgroundResource(thermalState.getColor());
-        portThermalState.setText(thermalState.getTitle());
+        ConnectionPowerState portState = port == Port.PORT_1 ? mPort1 : mPort2;
+        portState.setThermalState(thermalState);
+        scheduleRender();
     }
 
     void setDisconnected(Port port, float maxP) {
-        boolean port1 = port == Port.PORT_1;
-        ConnectionPowerState portState = port1 ? mPort1 : mPort2;
+        ConnectionPowerState portState = port == Port.PORT_1 ? mPort1 : mPort2;
         portState.setConnected(false);
         portState.setMaxP(maxP);
-
-        updateRemainingPower();
-
-        View hide = port1 ? mPort1Connected : mPort2Connected;
-        View show = port1 ? mPort1NoDeviceConnected : mPort2NoDeviceConnected;
-        hide.setVisibility(View.INVISIBLE);
-        show.setVisibility(View.VISIBLE);
-        setProgress(port, 0, (maxP < mRemainingTotalPower ? maxP : mRemainingTotalPower) );
+        scheduleRender();
     }
 
     void setConnected(Port port, float w, float v, float a, float maxP) {
-        boolean port1 = port == Port.PORT_1;
-        ConnectionPowerState portState = port1 ? mPort1 : mPort2;
-        TextView portW = port1 ? mPort1ConnectedW : mPort2ConnectedW;
-        TextView portVA = port1 ? mPort1ConnectedVa : mPort2ConnectedVa;
-        ImageView icon = port1 ? mPort1ConnectionSpeed : mPort2ConnectionSpeed;
-        View hide = port1 ? mPort1NoDeviceConnected : mPort2NoDeviceConnected;
-        View show = port1 ? mPort1Connected : mPort2Connected;
-        hide.setVisibility(View.INVISIBLE);
-        show.setVisibility(View.VISIBLE);
+        ConnectionPowerState portState = port == Port.PORT_1 ? mPort1 : mPort2;
         portState.setW(w);
         portState.setV(v);
         portState.setA(a);
         portState.setMaxP(maxP);
         portState.setConnected(true);
+        scheduleRender();
+    }
 
-        updateRemainingPower();
-
-        portW.setText(getString(R.string.w, w));
-        portVA.setText(getString(R.string.va, v, a));
-
-        Speed speed = Speed.SLOW;
-        if (w >= Speed.FAST.getThreshold())
-            speed = Speed.FAST;
-        else if (w >= Speed.AVERAGE.getThreshold())
-            speed = Speed.AVERAGE;
-
-        Glide.with(this).asGif().load(port1 ? speed.getLeft() : speed.getRight()).into(icon);
-        float remainingTotal = mRemainingTotalPower + w;
-        setProgress(port, w, (maxP < remainingTotal ? maxP : remainingTotal));
+    private void scheduleRender() {
+        if (!mRenderScheduled && !mStopped && !mDestroyed) {
+            mRenderScheduled = true;
+            mChoreographer.postFrameCallback(mRenderCallback);
+        }
     }
 
-    void setProgress(Port port, float w, float maxP) {
-        boolean port1 = port == Port.PORT_1;
-        ProgressBar portProgress = port1 ? mPort1Progress : mPort2Progress;
-        portProgress.setMax((int)maxP); //available port power
-        portProgress.setProgress((int) w);
-        TextView powerRemaining = port1 ? mPort1AvailablePortPower : mPort2AvailablePortPower;
-        powerRemaining.setText(getString(R.string.w, maxP - w));
+    //Apply the current state to the views. Only changed values reach the views.
+    private void render() {
+        mRemainingTotalPower = mMaxTotalPower - (mPort1.isConnected()?mPort1.getW():0) - (mPort2.isConnected()?mPort2.getW():0);
+        mMaximumTotalSystemPowerText.set(mMaxTotalPower);
+        mRemainingTotalSystemPowerText.set(mRemainingTotalPower);
+        mPort1View.bind(mPort1, mRemainingTotalPower);
+        mPort2View.bind(mPort2, mRemainingTotalPower);
     }
 
     @OnClick(R.id.logo)
@@ -210,6 +352,17 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
         setRandomData(Port.PORT_2);
     }
 
+    //Debug: capture both ports at high rate, plug a device in meanwhile to time its PD negotiation
+    @OnLongClick(R.id.logo)
+    boolean onLogoLongClick() {
+        if (mHubManager!=null) {
+            mHubManager.startBurstCapture(1);
+            mHubManager.startBurstCapture(2);
+            Toast.makeText(this, "Burst capture started", Toast.LENGTH_SHORT).show();
+        }
+        return true;
+    }
+
     void setRandomData(Port port) {
         Random random = new Random();
         boolean connected = random.nextBoolean();
@@ -229,12 +382,6 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
         return new Random().nextFloat() * (max - min) + min;
     }
 
-    private void updateRemainingPower() {
-        mRemainingTotalPower = mMaxTotalPower - (mPort1.isConnected()?mPort1.getW():0) - (mPort2.isConnected()?mPort2.getW():0);
-        mMaximumTotalSystemPower.setText(getString(R.string.maximum_total_system_power, mMaxTotalPower));
-        mRemainingTotalSystemPower.setText(getString(R.string.remaining_total_system_power, mRemainingTotalPower));
-    }
-
     //IHubListener
     @Override
     public void onPortStatus(int port, boolean attached, boolean negotiated, boolean orientation, boolean cap_mismatch,
@@ -252,11 +399,25 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
             setDisconnected(p, maxpower);
             setThermalState(p, ts);
         }
+        if (mStopped) {
+            return;
+        }
+        //Charts keep their own samples and redraw only the new columns
+        float w = attached ? power : 0;
+        PowerChartView chart = (port==1) ? mPort1Chart : mPort2Chart;
+        chart.setMaxValue(maxpower);
+        chart.addSample(w);
+        if (port==1) {
+            mPort1Power = w;
+        } else {
+            mSystemChart.setMaxValue(sys_pwr);
+            mSystemChart.addSample(mPort1Power + w);
+        }
     }
 
     @Override
     public void onHubStatus(int hubStatus) {
-        if (mRandomDebugMode) {
+        if (mRandomDebugMode || mDestroyed) {
             return;
         }
         if (hubStatus == HubManager.HUB_STATUS_DISCONNECTED) {
@@ -265,6 +426,10 @@ public class MainActivity extends AppCompatActivity implements HubManager.IHubLi
             setDisconnected(Port.PORT_2, DEFAULT_MAX_PORT_POWER);
             setThermalState(Port.PORT_1, ThermalState.NOT_IMPLEMENTED);
             setThermalState(Port.PORT_2, ThermalState.NOT_IMPLEMENTED);
+            //No more samples until the next connection
+            mPort1Chart.clear();
+            mPort2Chart.clear();
+            mSystemChart.clear();
         } else if (hubStatus == HubManager.HUB_STATUS_CONNECTED) {
             mTitle.setBackgroundColor(Color.parseColor("#00FF00")); //green
         } else if (hubStatus == HubManager.HUB_STATUS_ERRORS) {
@@ -0,0 +1,218 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Raw copy of HFC memory ranges taken by {@link MemorySnapshotter}.
+ * Binary format (big endian): magic, version, timestamp, read time, range count,
+ * (address, length) per range, then the bytes of all ranges back to back.
+ * The object is reusable: set() keeps the buffers when the new layout fits.
+ */
+class MemorySnapshot {
+    private static final int MAGIC = 0x50424D53; //"PBMS"
+    private static final int VERSION = 1;
+    //Checked before allocating, e.g. for a snapshot file read back
+    static final int MAX_RANGES = 0x10000;
+    static final int MAX_SIZE = 16 * 1024 * 1024;
+
+    interface IDiffCallback {
+        /**
+         * A run of bytes that differ.
+         * @param offset offset of the run in getData()
+         */
+        void onRun(int address, int offset, int length);
+    }
+
+    long timestampNs;   //SystemClock.elapsedRealtimeNanos() at the start of the read
+    long readNs;        //Time it took to read
+    private int mRangeCount;
+    private int[] mAddresses = new int[0];
+    private int[] mLengths = new int[0];
+    private int[] mOffsets = new int[0];
+    private byte[] mData = new byte[0];
+    private int mSize;
+
+    /**
+     * Set the layout. Data is left undefined.
+     * @throws IllegalArgumentException more than MAX_RANGES ranges, an empty range or more than MAX_SIZE bytes
+     */
+    void set(int[] addresses, int[] lengths, int count) {
+        if (count < 0 || count > MAX_RANGES) {
+            throw new IllegalArgumentException("bad range count " + count);
+        }
+        long total = 0;
+        for (int r = 0; r < count; ++r) {
+            if (lengths[r] <= 0) {
+                throw new IllegalArgumentException("bad length " + lengths[r]);
+            }
+            total += lengths[r];
+        }
+        if (total > MAX_SIZE) {
+            throw new IllegalArgumentException("snapshot too large: " + total + " bytes");
+        }
+        if (mAddresses.length < count) {
+            mAddresses = new int[count];
+            mLengths = new int[count];
+            mOffsets = new int[count];
+        }
+        int size = 0;
+        for (int r = 0; r < count; ++r) {
+            mAddresses[r] = addresses[r];
+            mLengths[r] = lengths[r];
+            mOffsets[r] = size;
+            size += lengths[r];
+        }
+        if (mData.length < size) {
+            mData = new byte[size];
+        }
+        mRangeCount = count;
+        mSize = size;
+        timestampNs = 0;
+        readNs = 0;
+    }
+
+    int getRangeCount() {
+        return mRangeCount;
+    }
+
+    int getAddress(int range) {
+        return mAddresses[range];
+    }
+
+    int getLength(int range) {
+        return mLengths[range];
+    }
+
+    int getOffset(int range) {
+        return mOffsets[range];
+    }
+
+    byte[] getData() {
+        return mData;
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    float getBytesPerSecond() {
+        return (readNs <= 0) ? 0 : (float)(mSize * 1e9 / readNs);
+    }
+
+    boolean sameLayout(MemorySnapshot other) {
+        if (mRangeCount != other.mRangeCount) {
+            return false;
+        }
+        for (int r = 0; r < mRangeCount; ++r) {
+            if (mAddresses[r] != other.mAddresses[r] || mLengths[r] != other.mLengths[r]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare with an older snapshot of the same layout in one pass. Runs don't span ranges.
+     * @param cb may be null to only count
+     * @return number of bytes that differ
+     */
+    int diff(MemorySnapshot older, IDiffCallback cb) {
+        if (!sameLayout(older)) {
+            throw new IllegalArgumentException("different layout");
+        }
+        final byte[] a = older.mData;
+        final byte[] b = mData;
+        int changed = 0;
+        for (int r = 0; r < mRangeCount; ++r) {
+            int i = mOffsets[r];
+            final int end = i + mLengths[r];
+            while (i < end) {
+                if (a[i] == b[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < end && a[i] != b[i]) {
+                    i++;
+                }
+                changed += i - start;
+                if (cb != null) {
+                    cb.onRun(mAddresses[r] + (start - mOffsets[r]), start, i - start);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Human readable diff: one line per run with the old and new bytes.
+     */
+    void writeDiff(final MemorySnapshot older, final PrintWriter pw) {
+        int changed = diff(older, new IDiffCallback() {
+            @Override
+            public void onRun(int address, int offset, int length) {
+                pw.println(String.format("0x%08X +%d: %s -> %s", address, length,
+                        HubManager.bytesToHex(older.mData, offset, length), HubManager.bytesToHex(mData, offset, length)));
+            }
+        });
+        pw.println("# " + changed + " of " + mSize + " bytes changed in "
+                + (timestampNs - older.timestampNs) / 1000000 + " ms");
+        pw.flush();
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(timestampNs);
+        out.writeLong(readNs);
+        out.writeInt(mRangeCount);
+        for (int r = 0; r < mRangeCount; ++r) {
+            out.writeInt(mAddresses[r]);
+            out.writeInt(mLengths[r]);
+        }
+        out.write(mData, 0, mSize);
+        out.flush();
+    }
+
+    void readFrom(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a memory snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        long timestamp = in.readLong();
+        long read = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > MAX_RANGES) {
+            throw new IOException("bad range count " + count);
+        }
+        int[] addresses = new int[count];
+        int[] lengths = new int[count];
+        for (int r = 0; r < count; ++r) {
+            addresses[r] = in.readInt();
+            lengths[r] = in.readInt();
+        }
+        try {
+            set(addresses, lengths, count);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        in.readFully(mData, 0, mSize);
+        timestampNs = timestamp;
+        readNs = read;
+    }
+
+    @Override
+    public String toString() {
+        return "MemorySnapshot{ranges=" + mRangeCount + " size=" + mSize + " " + (int)getBytesPerSecond() + " B/s}";
+    }
+}
@@ -0,0 +1,279 @@
+package com.gromaudio.powerbalancing;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulk HFC memory reader: copies address ranges into {@link MemorySnapshot}s and diffs each
+ * snapshot against the previous one.
+ *
+ * Reads use the largest control transfer the device accepts, probed per connection (power of
+ * two, MAX_CHUNK down to MIN_CHUNK), into one reusable chunk buffer. Probes only read inside
+ * the requested range, with a short timeout, and grow the chunk when a larger range comes.
+ * Runs on its own background thread and leases the connection per chunk. The bus is released
+ * for PAUSE_MS after every BUSY_NS of reading, so the regular poll waits at most for one chunk.
+ */
+class MemorySnapshotter {
+    private static final String TAG = "PB:MemorySnapshotter";
+
+    static final int MAX_CHUNK = 4096;
+    static final int MIN_CHUNK = 8;
+    private static final long BUSY_NS = 20L * 1000 * 1000;
+    private static final long PAUSE_MS = 5;
+    private static final int PROBE_TIMEOUT = 100; //ms
+
+    //PB block and thermal area
+    static final int[] DEFAULT_ADDRESSES = { 0xBFD9_7000, 0xBF81_A500 };
+    static final int[] DEFAULT_LENGTHS = { 0x1000, 0x100 };
+
+    //changedBytes of a snapshot without a previous one of the same ranges
+    static final int CHANGED_UNKNOWN = -1;
+
+    //Called on the HubManager handler thread.
+    interface ISnapshotListener {
+        /**
+         * @param changedBytes bytes that differ from the previous snapshot or CHANGED_UNKNOWN.
+         */
+        void onSnapshot(int size, float bytesPerSecond, int changedBytes);
+
+        //The connection went away or a read failed
+        void onSnapshotFailed();
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mWorker;
+    private final Handler mCallbackHandler;
+    private volatile ISnapshotListener mListener;
+    private volatile SharedConnection mConnection;
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+
+    private final byte[] mChunk = new byte[MAX_CHUNK];
+    //Worker thread only, except mChunkSize is read by dump()
+    private SharedConnection mProbedConnection;
+    private volatile int mChunkSize; //0: not probed for mProbedConnection
+    private boolean mChunkSizeFinal; //A larger chunk failed or MAX_CHUNK works: don't probe again
+    private int[] mAddresses;
+    private int[] mLengths;
+
+    //Worker fills mReading, then rotates it with the completed ones (under mLock).
+    private final Object mLock = new Object();
+    private MemorySnapshot mReading = new MemorySnapshot();
+    private MemorySnapshot mLatest = new MemorySnapshot();
+    private MemorySnapshot mPrevious = new MemorySnapshot();
+    private boolean mHaveLatest;
+    private boolean mHavePrevious;
+
+    MemorySnapshotter(Handler callbackHandler) {
+        mCallbackHandler = callbackHandler;
+        mThread = new HandlerThread("PB:MemorySnapshotter", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorker = new Handler(mThread.getLooper());
+    }
+
+    void close() {
+        mConnection = null;
+        mThread.quitSafely();
+    }
+
+    /**
+     * Connection to use. null aborts a running snapshot. The chunk size is probed again on
+     * the next connection.
+     */
+    void setConnection(SharedConnection connection) {
+        mConnection = connection;
+    }
+
+    void setListener(ISnapshotListener listener) {
+        mListener = listener;
+    }
+
+    int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Snapshot the ranges.
+     * @return false if a snapshot is already running
+     */
+    boolean request(int[] addresses, int[] lengths) {
+        if (addresses.length != lengths.length) {
+            throw new IllegalArgumentException("addresses/lengths mismatch");
+        }
+        if (!mBusy.compareAndSet(false, true)) {
+            return false;
+        }
+        mAddresses = addresses.clone();
+        mLengths = lengths.clone();
+        mWorker.post(mRead);
+        return true;
+    }
+
+    /**
+     * Size of the next chunk: at most chunkSize, without crossing a 64K boundary (wIndex
+     * holds the upper address bits of a transfer).
+     */
+    static int nextChunk(int address, int remaining, int chunkSize) {
+        int toBoundary = 0x10000 - (address & 0xFFFF);
+        return Math.min(Math.min(remaining, chunkSize), toBoundary);
+    }
+
+    /**
+     * Largest chunk to probe for a range: a power of two within the remaining bytes and MAX_CHUNK.
+     * @return 0 if remaining is less than MIN_CHUNK
+     */
+    static int probeLimit(int remaining) {
+        if (remaining < MIN_CHUNK) {
+            return 0;
+        }
+        return Integer.highestOneBit(Math.min(remaining, MAX_CHUNK));
+    }
+
+    private final Runnable mRead = new Runnable() {
+        @Override
+        public void run() {
+            int changed = CHANGED_UNKNOWN;
+            MemorySnapshot s = mReading;
+            s.set(mAddresses, mLengths, mAddresses.length);
+            boolean ok = read(s);
+            if (ok) {
+                synchronized (mLock) {
+                    mReading = mPrevious;
+                    mPrevious = mLatest;
+                    mLatest = s;
+                    mHavePrevious = mHaveLatest;
+                    mHaveLatest = true;
+                    changed = (mHavePrevious && s.sameLayout(mPrevious)) ? s.diff(mPrevious, null) : CHANGED_UNKNOWN;
+                }
+                Log.d(TAG, s + " changed=" + changed + " chunk=" + mChunkSize);
+            }
+            mBusy.set(false);
+            final ISnapshotListener listener = mListener;
+            if (listener != null) {
+                final int size = s.getSize();
+                final float bps = s.getBytesPerSecond();
+                final int c = changed;
+                final boolean success = ok;
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (success) {
+                            listener.onSnapshot(size, bps, c);
+                        } else {
+                            listener.onSnapshotFailed();
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    private boolean read(MemorySnapshot s) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        long busySince = start;
+        byte[] data = s.getData();
+        for (int r = 0; r < s.getRangeCount(); ++r) {
+            int address = s.getAddress(r);
+            int offset = s.getOffset(r);
+            int remaining = s.getLength(r);
+            while (remaining > 0) {
+                SharedConnection shared = mConnection;
+                UsbDeviceConnection connection = (shared != null) ? shared.acquire() : null;
+                if (connection == null) {
+                    Log.d(TAG, "Connection closed, abort snapshot");
+                    return false;
+                }
+                if (shared != mProbedConnection) {
+                    //New connection: probe again
+                    mProbedConnection = shared;
+                    mChunkSize = 0;
+                    mChunkSizeFinal = false;
+                }
+                int n;
+                try {
+                    int limit = probeLimit(remaining);
+                    if (!mChunkSizeFinal && limit > mChunkSize) {
+                        probeChunkSize(connection, address, limit);
+                        Log.d(TAG, "Chunk size " + mChunkSize);
+                    }
+                    //A range shorter than MIN_CHUNK is read in one transfer
+                    n = nextChunk(address, remaining, (limit == 0) ? remaining : mChunkSize);
+                    if (n <= 0 || HubManager.readHfcMemory(connection, address, n, mChunk) != n) {
+                        Log.e(TAG, String.format("Read error at 0x%08X (%d bytes)", address, n));
+                        return false;
+                    }
+                } finally {
+                    shared.release();
+                }
+                System.arraycopy(mChunk, 0, data, offset, n);
+                address += n;
+                offset += n;
+                remaining -= n;
+
+                //Let the regular poll in
+                long now = SystemClock.elapsedRealtimeNanos();
+                if (now - busySince >= BUSY_NS) {
+                    SystemClock.sleep(PAUSE_MS);
+                    busySince = SystemClock.elapsedRealtimeNanos();
+                }
+            }
+        }
+        s.timestampNs = start;
+        s.readNs = SystemClock.elapsedRealtimeNanos() - start;
+        return true;
+    }
+
+    /**
+     * Largest power of two up to limit the device returns in full at address, above the chunk
+     * size already known to work. Leaves mChunkSize at 0 if even MIN_CHUNK fails.
+     */
+    private void probeChunkSize(UsbDeviceConnection connection, int address, int limit) {
+        for (int size = limit; size >= MIN_CHUNK && size > mChunkSize; size >>= 1) {
+            if (nextChunk(address, size, size) != size) {
+                continue; //Would cross a 64K boundary
+            }
+            if (HubManager.readHfcMemory(connection, address, size, mChunk, PROBE_TIMEOUT) == size) {
+                mChunkSize = size;
+                mChunkSizeFinal = (size == MAX_CHUNK);
+                return;
+            }
+            mChunkSizeFinal = true;
+        }
+    }
+
+    /**
+     * Write the latest snapshot in binary format.
+     * @return false if there is none
+     */
+    boolean writeLatest(OutputStream os) throws IOException {
+        synchronized (mLock) {
+            if (!mHaveLatest) {
+                return false;
+            }
+            mLatest.writeTo(os);
+            return true;
+        }
+    }
+
+    /**
+     * Diff of the latest snapshot against the previous one.
+     */
+    void writeDiff(PrintWriter pw) {
+        synchronized (mLock) {
+            if (!mHavePrevious || !mLatest.sameLayout(mPrevious)) {
+                pw.println("# need two snapshots of the same ranges");
+                pw.flush();
+                return;
+            }
+            mLatest.writeDiff(mPrevious, pw);
+        }
+    }
+}
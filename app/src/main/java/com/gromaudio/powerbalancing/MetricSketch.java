@@ -0,0 +1,139 @@
+package com.gromaudio.powerbalancing;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable summary of a stream of values: count, min, max, mean, variance and a fixed-bin
+ * histogram used for quantile estimation.
+ * Memory is fixed (one int per bin), insert is O(1) and allocation free. Quantile error is
+ * bounded by one bin width for values inside [lo, hi); values outside the range are counted in
+ * the first/last bin (min/max stay exact).
+ */
+class MetricSketch {
+    private final float mLo;
+    private final float mBinWidth;
+    private final int[] mBins;
+
+    private long mCount;
+    private float mMin;
+    private float mMax;
+    private double mMean;
+    private double mM2;
+
+    MetricSketch(float lo, float hi, int bins) {
+        mLo = lo;
+        mBinWidth = (hi - lo) / bins;
+        mBins = new int[bins];
+        reset();
+    }
+
+    void reset() {
+        if (mCount != 0) {
+            Arrays.fill(mBins, 0);
+        }
+        mCount = 0;
+        mMin = Float.NaN;
+        mMax = Float.NaN;
+        mMean = 0;
+        mM2 = 0;
+    }
+
+    void add(float value) {
+        if (mCount == 0) {
+            mMin = value;
+            mMax = value;
+        } else {
+            if (value < mMin) mMin = value;
+            if (value > mMax) mMax = value;
+        }
+        mCount++;
+        //Welford
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+
+        mBins[binOf(value)]++;
+    }
+
+    /**
+     * Merge another sketch with the same range and number of bins into this one.
+     */
+    void merge(MetricSketch other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            mMin = other.mMin;
+            mMax = other.mMax;
+            mMean = other.mMean;
+            mM2 = other.mM2;
+        } else {
+            if (other.mMin < mMin) mMin = other.mMin;
+            if (other.mMax > mMax) mMax = other.mMax;
+            //Chan et al. parallel variance
+            long n = mCount + other.mCount;
+            double delta = other.mMean - mMean;
+            mMean += delta * other.mCount / n;
+            mM2 += other.mM2 + delta * delta * mCount * other.mCount / n;
+        }
+        mCount += other.mCount;
+        final int[] bins = other.mBins;
+        for (int b = 0; b < mBins.length; ++b) {
+            mBins[b] += bins[b];
+        }
+    }
+
+    private int binOf(float value) {
+        int b = (int)((value - mLo) / mBinWidth);
+        if (b < 0) return 0;
+        if (b >= mBins.length) return mBins.length - 1;
+        return b;
+    }
+
+    /**
+     * @param q quantile in [0, 1] (e.g. 0.95 for p95)
+     * @return estimated value or NaN if the sketch is empty.
+     */
+    float quantile(float q) {
+        if (mCount == 0) {
+            return Float.NaN;
+        }
+        double target = q * mCount;
+        long cumulative = 0;
+        for (int b = 0; b < mBins.length; ++b) {
+            int h = mBins[b];
+            if (h != 0 && cumulative + h >= target) {
+                float v = (float)(mLo + (b + (target - cumulative) / h) * mBinWidth);
+                if (v < mMin) return mMin;
+                if (v > mMax) return mMax;
+                return v;
+            }
+            cumulative += h;
+        }
+        return mMax;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    float getMin() {
+        return mMin;
+    }
+
+    float getMax() {
+        return mMax;
+    }
+
+    float getMean() {
+        return (mCount == 0) ? Float.NaN : (float)mMean;
+    }
+
+    float getVariance() {
+        return (mCount < 2) ? 0 : (float)(mM2 / (mCount - 1));
+    }
+
+    float getBinWidth() {
+        return mBinWidth;
+    }
+}
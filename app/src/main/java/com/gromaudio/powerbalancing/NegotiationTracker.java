@@ -0,0 +1,319 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.PrintWriter;
+
+/**
+ * PD negotiation timing of one port.
+ * Timestamps the attach, negotiated, contract_operate, first non-default V/I and full power edges
+ * and keeps attach-to-negotiated, attach-to-non-default-V/I and attach-to-full-power latency
+ * histograms split by the power tier of the contract.
+ *
+ * Negotiations take tens of ms, so edges are timed on burst captures (see {@link BurstSampler}):
+ * while polling at full rate, BurstSampler watches detached ports and captures an attach along
+ * with the samples before it. Otherwise the attach is taken from the poll that saw it and only the
+ * later edges get burst resolution; edges already present at that poll can't be timed.
+ * Attaches only seen by low-power polls aren't timed at all.
+ * Full power is reached when the contract is operating and V_OPERATIONAL is within 5% of
+ * V_NEGOTIATED (the hub doesn't report the operating current).
+ */
+class NegotiationTracker {
+    static final int LATENCY_NEGOTIATED = 0;
+    static final int LATENCY_NON_DEFAULT_VI = 1;
+    static final int LATENCY_FULL_POWER = 2;
+    static final int LATENCIES = 3;
+    private static final String[] LATENCY_NAMES = { "attach->negotiated", "attach->non_default_vi", "attach->full_power" };
+
+    //Tiers by contract power (W)
+    private static final float[] TIER_MAX_W = { 7.5f, 15.0f, 27.0f, 45.0f, 60.0f };
+    private static final String[] TIER_NAMES = { "<=7.5W", "<=15W", "<=27W", "<=45W", "<=60W", ">60W" };
+    static final int TIERS = TIER_NAMES.length;
+
+    //Values reported while attached but not negotiated (see HubFrame)
+    private static final float DEFAULT_V = 5.0f;
+    private static final float DEFAULT_I = 3.0f;
+    private static final float FULL_POWER_V_RATIO = 0.95f;
+
+    //Attaches seen by polls further apart than this (low-power polling) are not timed
+    private static final long MAX_POLL_RESOLUTION_NS = 2000L * 1000 * 1000;
+    //Stop waiting for the remaining edges
+    private static final long MAX_TRACKING_NS = 60L * 1000 * 1000 * 1000;
+
+    private static final long NONE = -1;
+    private static final long UNTIMED = -2; //edge already present when the attach was seen
+
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[LATENCIES][TIERS];
+
+    //Regular polls
+    private boolean mHavePoll;
+    private boolean mPollAttached;
+    private long mPollNs;
+
+    private boolean mTracking; //attach seen, waiting for the other edges
+    private boolean mAwaitingCapture; //attach seen by a poll, the capture it triggered may refine it
+
+    //Edges of the current (or last) attach. NONE if not seen.
+    private long mAttachNs = NONE;
+    private long mAttachResolutionNs;
+    private boolean mAttachFromCapture;
+    private long mNegotiatedNs = NONE;
+    private long mContractOperateNs = NONE;
+    private long mNonDefaultViNs = NONE;
+    private long mFullPowerNs = NONE;
+    private int mTier = -1;
+
+    private int mCaptures;
+    private int mCaptureAttaches; //timed from a capture
+    private int mPollAttaches; //timed from a poll
+    private int mUntimedAttaches;
+    private final byte[] mSampleBuff = new byte[HubFrame.PORT_PARAMS_SIZE];
+    private final HubFrame.PortFrame mSample = new HubFrame.PortFrame();
+
+    NegotiationTracker() {
+        for (int l = 0; l < LATENCIES; ++l) {
+            for (int t = 0; t < TIERS; ++t) {
+                mHistograms[l][t] = new LatencyHistogram();
+            }
+        }
+    }
+
+    static int tierOf(float watts) {
+        for (int t = 0; t < TIER_MAX_W.length; ++t) {
+            if (watts <= TIER_MAX_W[t]) {
+                return t;
+            }
+        }
+        return TIERS - 1;
+    }
+
+    static String tierName(int tier) {
+        return TIER_NAMES[tier];
+    }
+
+    /**
+     * Polling stopped: the next poll can't be used to detect an attach edge.
+     */
+    void reset() {
+        mHavePoll = false;
+        if (mTracking) {
+            commit();
+        }
+    }
+
+    /**
+     * Regular poll of the port.
+     */
+    void onPoll(long timestampNs, HubFrame.PortFrame f) {
+        boolean attachEdge = mHavePoll && f.attached && !mPollAttached;
+        long prevPollNs = mPollNs;
+        mHavePoll = true;
+        mPollAttached = f.attached;
+        mPollNs = timestampNs;
+
+        if (!f.attached) {
+            if (mTracking) {
+                commit();
+            }
+            return;
+        }
+        //Unless a capture already timed this attach
+        if (attachEdge && !(mTracking && mAttachNs > prevPollNs)) {
+            if (mTracking) {
+                commit();
+            }
+            startAttach(timestampNs, timestampNs - prevPollNs, false);
+            mAwaitingCapture = true;
+            //Happened somewhere between the two polls
+            mNegotiatedNs = f.negotiated ? UNTIMED : NONE;
+            mContractOperateNs = f.contractOperate ? UNTIMED : NONE;
+            mNonDefaultViNs = isNonDefaultVi(f) ? UNTIMED : NONE;
+            mFullPowerNs = isFullPower(f) ? UNTIMED : NONE;
+            if (f.negotiated) {
+                mTier = tierOf(f.negotiatedVoltage * f.negotiatedCurrent);
+            }
+        } else if (mTracking) {
+            onEdges(timestampNs, f);
+        }
+        if (mTracking && (isComplete() || timestampNs - mAttachNs >= MAX_TRACKING_NS)) {
+            commit();
+        }
+    }
+
+    /**
+     * Time the edges seen in a completed capture of the port.
+     * An attach inside the capture (a detached sample before it) replaces the one seen by a poll.
+     */
+    void onCapture(BurstCapture capture) {
+        mCaptures++;
+        boolean havePrev = false;
+        boolean prevAttached = false;
+        long prevNs = 0;
+        for (int s = 0; s < capture.getCount(); ++s) {
+            long ts = capture.getTimestampNs(s);
+            capture.decode(s, mSampleBuff, mSample);
+            if (mSample.attached) {
+                if (havePrev && !prevAttached) {
+                    //Exact to one sample period
+                    startAttach(ts, ts - prevNs, true);
+                }
+                if (mTracking && ts >= mAttachNs) {
+                    onEdges(ts, mSample);
+                }
+            } else if (mTracking && ts > mAttachNs) {
+                commit();
+            }
+            havePrev = true;
+            prevAttached = mSample.attached;
+            prevNs = ts;
+        }
+        mAwaitingCapture = false;
+        if (mTracking && isComplete()) {
+            commit();
+        }
+    }
+
+    private void startAttach(long timestampNs, long resolutionNs, boolean fromCapture) {
+        mTracking = true;
+        mAwaitingCapture = false;
+        mAttachNs = timestampNs;
+        mAttachResolutionNs = resolutionNs;
+        mAttachFromCapture = fromCapture;
+        mNegotiatedNs = NONE;
+        mContractOperateNs = NONE;
+        mNonDefaultViNs = NONE;
+        mFullPowerNs = NONE;
+        mTier = -1;
+    }
+
+    //Samples are not always in order (a capture ends after the polls taken during it): keep the earliest
+    private void onEdges(long timestampNs, HubFrame.PortFrame f) {
+        if (f.negotiated) {
+            if (mTier < 0) {
+                mTier = tierOf(f.negotiatedVoltage * f.negotiatedCurrent);
+            }
+            mNegotiatedNs = earliest(mNegotiatedNs, timestampNs);
+        }
+        if (f.contractOperate) {
+            mContractOperateNs = earliest(mContractOperateNs, timestampNs);
+        }
+        if (isNonDefaultVi(f)) {
+            mNonDefaultViNs = earliest(mNonDefaultViNs, timestampNs);
+        }
+        if (isFullPower(f)) {
+            mFullPowerNs = earliest(mFullPowerNs, timestampNs);
+        }
+    }
+
+    private static long earliest(long edgeNs, long timestampNs) {
+        return (edgeNs == NONE || (edgeNs >= 0 && timestampNs < edgeNs)) ? timestampNs : edgeNs;
+    }
+
+    private boolean isComplete() {
+        return !mAwaitingCapture && mNegotiatedNs != NONE && mContractOperateNs != NONE
+                && mNonDefaultViNs != NONE && mFullPowerNs != NONE;
+    }
+
+    //Record the attach (detached, timed out or all edges seen)
+    private void commit() {
+        mTracking = false;
+        mAwaitingCapture = false;
+        if (!isAttachTimed()) {
+            mUntimedAttaches++;
+            return;
+        }
+        if (mAttachFromCapture) {
+            mCaptureAttaches++;
+        } else {
+            mPollAttaches++;
+        }
+        if (mTier < 0) {
+            return;
+        }
+        addLatency(LATENCY_NEGOTIATED, mNegotiatedNs);
+        addLatency(LATENCY_NON_DEFAULT_VI, mNonDefaultViNs);
+        addLatency(LATENCY_FULL_POWER, mFullPowerNs);
+    }
+
+    private void addLatency(int latency, long edgeNs) {
+        if (edgeNs >= 0) {
+            mHistograms[latency][mTier].add(edgeNs - mAttachNs);
+        }
+    }
+
+    private boolean isAttachTimed() {
+        return mAttachNs != NONE && mAttachResolutionNs <= MAX_POLL_RESOLUTION_NS;
+    }
+
+    private static boolean isDefault(float v, float i) {
+        return Math.abs(v - DEFAULT_V) < 0.01f && Math.abs(i - DEFAULT_I) < 0.01f;
+    }
+
+    //A 5V/3A contract never leaves the default values: non-default as soon as negotiated
+    private static boolean isNonDefaultVi(HubFrame.PortFrame f) {
+        return f.negotiated && (!isDefault(f.voltage, f.current) || isDefault(f.negotiatedVoltage, f.negotiatedCurrent));
+    }
+
+    private static boolean isFullPower(HubFrame.PortFrame f) {
+        return f.negotiated && f.contractOperate && f.operationalVoltage >= f.negotiatedVoltage * FULL_POWER_V_RATIO;
+    }
+
+    LatencyHistogram getHistogram(int latency, int tier) {
+        return mHistograms[latency][tier];
+    }
+
+    //Latencies of the last attach (ns), -1 if not (yet) observed or not timed.
+    long getLastAttachToNegotiatedNs() {
+        return latency(mNegotiatedNs);
+    }
+
+    long getLastAttachToContractOperateNs() {
+        return latency(mContractOperateNs);
+    }
+
+    long getLastAttachToNonDefaultViNs() {
+        return latency(mNonDefaultViNs);
+    }
+
+    long getLastAttachToFullPowerNs() {
+        return latency(mFullPowerNs);
+    }
+
+    private long latency(long edgeNs) {
+        return (!isAttachTimed() || edgeNs < 0) ? NONE : edgeNs - mAttachNs;
+    }
+
+    //How far the last attach timestamp may be off (ns): one poll or one capture sample period.
+    long getLastAttachResolutionNs() {
+        return (mAttachNs == NONE) ? NONE : mAttachResolutionNs;
+    }
+
+    //Power tier of the last negotiated contract, -1 if none.
+    int getLastTier() {
+        return mTier;
+    }
+
+    int getUntimedAttaches() {
+        return mUntimedAttaches;
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "captures=" + mCaptures + " attaches timed on captures=" + mCaptureAttaches
+                + " on polls=" + mPollAttaches + " untimed=" + mUntimedAttaches);
+        pw.println(prefix + "last: attach->negotiated=" + toMs(getLastAttachToNegotiatedNs())
+                + " attach->contract_operate=" + toMs(getLastAttachToContractOperateNs())
+                + " attach->non_default_vi=" + toMs(getLastAttachToNonDefaultViNs())
+                + " attach->full_power=" + toMs(getLastAttachToFullPowerNs())
+                + " attach resolution=" + toMs(getLastAttachResolutionNs())
+                + " tier=" + (mTier < 0 ? "-" : tierName(mTier)));
+        for (int t = 0; t < TIERS; ++t) {
+            for (int l = 0; l < LATENCIES; ++l) {
+                if (mHistograms[l][t].getCount() != 0) {
+                    mHistograms[l][t].dump(prefix + tierName(t) + " " + LATENCY_NAMES[l] + ": ", pw);
+                }
+            }
+        }
+    }
+
+    private static String toMs(long ns) {
+        return (ns < 0) ? "-" : (ns / 1000 / 1000) + "ms";
+    }
+}
@@ -0,0 +1,69 @@
+package com.gromaudio.powerbalancing;
+
+/**
+ * Counts polls per polling mode and the time spent in each mode, to verify the savings of the
+ * low-power mode. These are poll executions, not device wakeups: low-power polls use a
+ * non-wakeup alarm, delivered when the device is awake anyway. While the device is suspended
+ * nothing is polled; that time is measured as the difference between the elapsed realtime and
+ * the uptime spent in each mode.
+ */
+class PollCounter {
+    static final int MODE_NONE = -1;
+    static final int MODE_FULL = 0;
+    static final int MODE_LOW_POWER = 1;
+    private static final int MODES = 2;
+    private static final double NANOS_PER_HOUR = 3600.0 * 1000 * 1000 * 1000;
+
+    private final long[] mPolls = new long[MODES];
+    private final long[] mTimeNs = new long[MODES];
+    private final long[] mUptimeNs = new long[MODES];
+    private int mMode = MODE_NONE;
+    private long mSinceNs;
+    private long mSinceUptimeNs;
+
+    /**
+     * @param nowNs elapsed realtime (counts while suspended)
+     * @param uptimeNs uptime (stops while suspended)
+     */
+    void setMode(int mode, long nowNs, long uptimeNs) {
+        if (mode == mMode) {
+            return;
+        }
+        if (mMode != MODE_NONE) {
+            mTimeNs[mMode] += nowNs - mSinceNs;
+            mUptimeNs[mMode] += uptimeNs - mSinceUptimeNs;
+        }
+        mMode = mode;
+        mSinceNs = nowNs;
+        mSinceUptimeNs = uptimeNs;
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    void poll() {
+        if (mMode != MODE_NONE) {
+            mPolls[mMode]++;
+        }
+    }
+
+    long getPolls(int mode) {
+        return mPolls[mode];
+    }
+
+    long getTimeNs(int mode, long nowNs) {
+        return mTimeNs[mode] + ((mode == mMode) ? nowNs - mSinceNs : 0);
+    }
+
+    //Time spent suspended in the mode, i.e. not monitored
+    long getSuspendedNs(int mode, long nowNs, long uptimeNs) {
+        long uptime = mUptimeNs[mode] + ((mode == mMode) ? uptimeNs - mSinceUptimeNs : 0);
+        return getTimeNs(mode, nowNs) - uptime;
+    }
+
+    float getPollsPerHour(int mode, long nowNs) {
+        long t = getTimeNs(mode, nowNs);
+        return (t <= 0) ? 0 : (float)(mPolls[mode] * NANOS_PER_HOUR / t);
+    }
+}
@@ -0,0 +1,67 @@
+package com.gromaudio.powerbalancing;
+
+/**
+ * Streaming power/voltage/current statistics of a port over the 1 minute, 1 hour and 24 hours
+ * sliding windows. Only samples taken while a device is attached are accounted.
+ * Memory: METRICS * WINDOWS * SLOTS * BINS ints (~110 KB per port).
+ */
+class PortStatistics {
+    static final int METRIC_POWER = 0;
+    static final int METRIC_VOLTAGE = 1;
+    static final int METRIC_CURRENT = 2;
+    static final int METRICS = 3;
+
+    static final int WINDOW_1M = 0;
+    static final int WINDOW_1H = 1;
+    static final int WINDOW_24H = 2;
+    static final int WINDOWS = 3;
+
+    private static final long MINUTE_NS = 60L*1000*1000*1000;
+    private static final long[] WINDOW_NS = { MINUTE_NS, 60*MINUTE_NS, 24*60*MINUTE_NS };
+    private static final int SLOTS = 12; //5s, 5min and 2h granularity
+
+    private static final int BINS = 256;
+    //Histogram ranges: 0.5W, 0.1V and 25mA resolution
+    private static final float[] METRIC_HI = { 128.0f, 25.6f, 6.4f };
+
+    private final WindowedStats[][] mStats = new WindowedStats[METRICS][WINDOWS];
+
+    PortStatistics() {
+        for (int m = 0; m < METRICS; ++m) {
+            for (int w = 0; w < WINDOWS; ++w) {
+                mStats[m][w] = new WindowedStats(WINDOW_NS[w], SLOTS, 0, METRIC_HI[m], BINS);
+            }
+        }
+    }
+
+    /**
+     * Create a sketch suitable for query() of the metric.
+     * Allocate it once and reuse for every query.
+     */
+    static MetricSketch newQuerySketch(int metric) {
+        return new MetricSketch(0, METRIC_HI[metric], BINS);
+    }
+
+    void add(long timestampNs, float power, float voltage, float current) {
+        for (int w = 0; w < WINDOWS; ++w) {
+            mStats[METRIC_POWER][w].add(timestampNs, power);
+            mStats[METRIC_VOLTAGE][w].add(timestampNs, voltage);
+            mStats[METRIC_CURRENT][w].add(timestampNs, current);
+        }
+    }
+
+    /**
+     * @param out sketch created by newQuerySketch(metric); reset and filled with the window summary.
+     */
+    void query(int metric, int window, long nowNs, MetricSketch out) {
+        mStats[metric][window].query(nowNs, out);
+    }
+
+    void clear() {
+        for (int m = 0; m < METRICS; ++m) {
+            for (int w = 0; w < WINDOWS; ++w) {
+                mStats[m][w].clear();
+            }
+        }
+    }
+}
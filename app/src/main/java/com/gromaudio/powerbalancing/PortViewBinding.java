@@ -0,0 +1,100 @@
+package com.gromaudio.powerbalancing;
+
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import com.bumptech.glide.RequestManager;
+
+/**
+ * Views of one port.
+ * Remembers what is displayed and touches only the views whose value changed.
+ */
+class PortViewBinding {
+    private final boolean mLeft;
+    private final View mConnected;
+    private final View mNoDeviceConnected;
+    private final TextView mThermalState;
+    private final ImageView mConnectionSpeed;
+    private final ProgressBar mProgress;
+    private final TextBinding mW;
+    private final TextBinding mVa;
+    private final TextBinding mAvailablePower;
+    private final RequestManager mGlide;
+
+    //Displayed state
+    private int mShownConnected = -1;
+    private ThermalState mShownThermalState;
+    private Speed mShownSpeed;
+    private int mShownMax = -1;
+    private int mShownProgress = -1;
+
+    PortViewBinding(boolean left, View connected, View noDeviceConnected, TextView thermalState,
+                    ImageView connectionSpeed, ProgressBar progress,
+                    TextView w, TextView va, TextView availablePower,
+                    String wFormat, String vaFormat, RequestManager glide) {
+        mLeft = left;
+        mConnected = connected;
+        mNoDeviceConnected = noDeviceConnected;
+        mThermalState = thermalState;
+        mConnectionSpeed = connectionSpeed;
+        mProgress = progress;
+        mW = new TextBinding(w, wFormat);
+        mVa = new TextBinding(va, vaFormat);
+        mAvailablePower = new TextBinding(availablePower, wFormat);
+        mGlide = glide;
+    }
+
+    /**
+     * @param remainingTotalPower system power left after all connected ports (W)
+     */
+    void bind(ConnectionPowerState state, float remainingTotalPower) {
+        boolean connected = state.isConnected();
+        int shownConnected = connected ? 1 : 0;
+        if (mShownConnected != shownConnected) {
+            mShownConnected = shownConnected;
+            (connected ? mNoDeviceConnected : mConnected).setVisibility(View.INVISIBLE);
+            (connected ? mConnected : mNoDeviceConnected).setVisibility(View.VISIBLE);
+        }
+
+        float maxP = state.getMaxP();
+        if (connected) {
+            float w = state.getW();
+            mW.set(w);
+            mVa.set(state.getV(), state.getA());
+
+            Speed speed = Speed.fromPower(w);
+            if (speed != mShownSpeed) {
+                mShownSpeed = speed;
+                mGlide.asGif().load(mLeft ? speed.getLeft() : speed.getRight()).into(mConnectionSpeed);
+            }
+            float remainingTotal = remainingTotalPower + w;
+            setProgress(w, (maxP < remainingTotal ? maxP : remainingTotal));
+        } else {
+            setProgress(0, (maxP < remainingTotalPower ? maxP : remainingTotalPower));
+        }
+
+        ThermalState thermalState = state.getThermalState();
+        if (thermalState != mShownThermalState) {
+            mShownThermalState = thermalState;
+            mThermalState.setBackgroundResource(thermalState.getColor());
+            mThermalState.setText(thermalState.getTitle());
+        }
+    }
+
+    private void setProgress(float w, float maxP) {
+        int max = (int)maxP; //available port power
+        if (max != mShownMax) {
+            mShownMax = max;
+            mProgress.setMax(max);
+            mShownProgress = -1; //setMax() may clamp the progress
+        }
+        int progress = (int)w;
+        if (progress != mShownProgress) {
+            mShownProgress = progress;
+            mProgress.setProgress(progress);
+        }
+        mAvailablePower.set(maxP - w);
+    }
+}
@@ -0,0 +1,205 @@
+package com.gromaudio.powerbalancing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Rolling power chart in sweep mode (like an oscilloscope): samples are drawn left to right into
+ * a backing bitmap, and the oldest ones are erased just ahead of the sweep. A new sample only
+ * touches a few columns of the bitmap, so only those are redrawn. The view itself is fully
+ * invalidated: dirty rects are ignored with hardware acceleration, and the blit is cheap.
+ *
+ * Samples are kept in a fixed {@link SampleRing}, Paint/Path are reused and onDraw() doesn't
+ * allocate: it draws the pending segments into the bitmap and blits it. The full redraw (path
+ * over the whole ring) only happens on size or scale changes.
+ * Call addSample() on the UI thread, at any rate: invalidations are coalesced per frame.
+ */
+public class PowerChartView extends View {
+    static final int DEFAULT_CAPACITY = 600; //30 s at 20 Hz
+    private static final int ERASE_AHEAD = 4; //samples cleared in front of the sweep, at least...
+    private static final float ERASE_AHEAD_MIN_PX = 3; //...the line width and its antialiasing
+    private static final int GRID_LINES = 4;
+    private static final int BACKGROUND_COLOR = 0xFF1A1A1A;
+    private static final int GRID_COLOR = 0xFF404040;
+    private static final int DEFAULT_LINE_COLOR = 0xFF00B0F0;
+
+    private final SampleRing mSamples;
+    private float mMaxValue = 100;
+
+    private final Paint mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mGridPaint = new Paint();
+    private final Paint mBackgroundPaint = new Paint();
+    private final Path mPath = new Path();
+    private final Canvas mBitmapCanvas = new Canvas();
+    private Bitmap mBitmap;
+
+    //Chart area
+    private float mLeft;
+    private float mTop;
+    private float mWidth;
+    private float mHeight;
+    private float mStepX;
+    private int mEraseAhead = ERASE_AHEAD; //samples, covers at least ERASE_AHEAD_MIN_PX
+
+    private long mDrawn; //Absolute index of the first sample not yet drawn into the bitmap
+    private boolean mFullRedraw = true;
+
+    public PowerChartView(Context context) {
+        this(context, null);
+    }
+
+    public PowerChartView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public PowerChartView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        mSamples = new SampleRing(DEFAULT_CAPACITY);
+        mLinePaint.setStyle(Paint.Style.STROKE);
+        mLinePaint.setStrokeWidth(2);
+        mLinePaint.setColor(DEFAULT_LINE_COLOR);
+        mGridPaint.setStyle(Paint.Style.STROKE);
+        mGridPaint.setStrokeWidth(1);
+        mGridPaint.setColor(GRID_COLOR);
+        mBackgroundPaint.setStyle(Paint.Style.FILL);
+        mBackgroundPaint.setColor(BACKGROUND_COLOR);
+    }
+
+    public void setLineColor(int color) {
+        mLinePaint.setColor(color);
+        mFullRedraw = true;
+        invalidate();
+    }
+
+    /**
+     * Value at the top of the chart.
+     */
+    public void setMaxValue(float max) {
+        if (max <= 0 || max == mMaxValue) {
+            return;
+        }
+        mMaxValue = max;
+        mFullRedraw = true;
+        invalidate();
+    }
+
+    public void addSample(float value) {
+        mSamples.add(value);
+        if (mBitmap == null) {
+            return;
+        }
+        invalidate();
+    }
+
+    public void clear() {
+        mSamples.clear();
+        mFullRedraw = true;
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        mLeft = getPaddingLeft();
+        mTop = getPaddingTop();
+        mWidth = w - getPaddingLeft() - getPaddingRight();
+        mHeight = h - getPaddingTop() - getPaddingBottom();
+        if (mWidth > 0 && mHeight > 0) {
+            mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+            mBitmapCanvas.setBitmap(mBitmap);
+            mStepX = mWidth / mSamples.capacity();
+            //Narrow chart: several samples per pixel
+            mEraseAhead = Math.min(mSamples.capacity() / 2,
+                    Math.max(ERASE_AHEAD, (int)Math.ceil(ERASE_AHEAD_MIN_PX / mStepX)));
+        }
+        mFullRedraw = true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mBitmap == null) {
+            return;
+        }
+        if (mFullRedraw || mSamples.count() - mDrawn > mSamples.capacity() - mEraseAhead) {
+            redrawAll();
+        } else {
+            drawPending();
+        }
+        canvas.drawBitmap(mBitmap, 0, 0, null);
+    }
+
+    private float xOf(int i) {
+        return mLeft + i * mStepX;
+    }
+
+    private float yOf(float value) {
+        float v = value / mMaxValue;
+        if (v < 0) v = 0;
+        if (v > 1) v = 1;
+        return mTop + mHeight * (1 - v);
+    }
+
+    private void drawGrid(float left, float right) {
+        for (int g = 1; g < GRID_LINES; ++g) {
+            float y = mTop + mHeight * g / GRID_LINES;
+            mBitmapCanvas.drawLine(left, y, right, y, mGridPaint);
+        }
+    }
+
+    private void redrawAll() {
+        final Canvas c = mBitmapCanvas;
+        c.drawRect(0, 0, mLeft + mWidth + getPaddingRight(), mTop + mHeight + getPaddingBottom(), mBackgroundPaint);
+        drawGrid(mLeft, mLeft + mWidth);
+        final int capacity = mSamples.capacity();
+        final long end = mSamples.count();
+        //Keep the band ahead of the sweep empty
+        long start = Math.max(mSamples.first(), end - capacity + mEraseAhead);
+        mPath.rewind();
+        boolean started = false;
+        for (long n = start; n < end; ++n) {
+            int i = (int)(n % capacity);
+            float x = xOf(i);
+            float y = yOf(mSamples.get(n));
+            if (!started || i == 0) {
+                mPath.moveTo(x, y);
+                started = true;
+            } else {
+                mPath.lineTo(x, y);
+            }
+        }
+        c.drawPath(mPath, mLinePaint);
+        mDrawn = end;
+        mFullRedraw = false;
+    }
+
+    private void drawPending() {
+        final Canvas c = mBitmapCanvas;
+        final int capacity = mSamples.capacity();
+        final long end = mSamples.count();
+        final float right = mLeft + mWidth;
+        for (long n = mDrawn; n < end; ++n) {
+            int i = (int)(n % capacity);
+            float x = xOf(i);
+            //Erase the band ahead of the sweep (the oldest samples)
+            float eraseLeft = (i == 0) ? mLeft : x + 1;
+            float eraseRight = Math.min(right, x + mStepX * mEraseAhead);
+            if (eraseRight > eraseLeft) {
+                c.drawRect(eraseLeft, mTop, eraseRight, mTop + mHeight, mBackgroundPaint);
+                drawGrid(eraseLeft, eraseRight);
+            }
+            if (i > 0 && n > mSamples.first()) {
+                c.drawLine(xOf(i - 1), yOf(mSamples.get(n - 1)), x, yOf(mSamples.get(n)), mLinePaint);
+            }
+        }
+        mDrawn = end;
+    }
+}
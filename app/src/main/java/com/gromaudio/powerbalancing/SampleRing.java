@@ -0,0 +1,44 @@
+package com.gromaudio.powerbalancing;
+
+/**
+ * Fixed-capacity ring of float samples addressed by their absolute index (0 for the first
+ * sample ever added). The oldest samples are overwritten; nothing is allocated after construction.
+ */
+class SampleRing {
+    private final float[] mValues;
+    private long mCount; //samples ever added
+
+    SampleRing(int capacity) {
+        mValues = new float[capacity];
+    }
+
+    void add(float value) {
+        mValues[(int)(mCount % mValues.length)] = value;
+        mCount++;
+    }
+
+    int capacity() {
+        return mValues.length;
+    }
+
+    //Absolute index of the next sample.
+    long count() {
+        return mCount;
+    }
+
+    //Absolute index of the oldest sample still held.
+    long first() {
+        return Math.max(0, mCount - mValues.length);
+    }
+
+    /**
+     * @param index absolute index in [first(), count())
+     */
+    float get(long index) {
+        return mValues[(int)(index % mValues.length)];
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+}
@@ -0,0 +1,63 @@
+package com.gromaudio.powerbalancing;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UsbDeviceConnection shared by the poll loop and the {@link BurstSampler} thread.
+ * Users hold a lease (acquire()/release()) around their transfers. close() only marks the
+ * connection: it is closed by whoever drops the last lease, so it is never closed in the
+ * middle of a transfer and nobody blocks waiting for the bus.
+ */
+class SharedConnection {
+    private static final int CLOSING = 0x80000000;
+
+    private final UsbDeviceConnection mConnection;
+    //Leases held, CLOSING bit once close() has been called
+    private final AtomicInteger mUsers = new AtomicInteger();
+
+    SharedConnection(UsbDeviceConnection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * @return the connection, to be released with release(), or null if it is closing.
+     */
+    UsbDeviceConnection acquire() {
+        while (true) {
+            int u = mUsers.get();
+            if ((u & CLOSING) != 0) {
+                return null;
+            }
+            if (mUsers.compareAndSet(u, u + 1)) {
+                return mConnection;
+            }
+        }
+    }
+
+    void release() {
+        if (mUsers.decrementAndGet() == CLOSING) {
+            mConnection.close();
+        }
+    }
+
+    void close() {
+        while (true) {
+            int u = mUsers.get();
+            if ((u & CLOSING) != 0) {
+                return;
+            }
+            if (mUsers.compareAndSet(u, u | CLOSING)) {
+                if (u == 0) {
+                    mConnection.close();
+                }
+                return;
+            }
+        }
+    }
+
+    boolean isClosing() {
+        return (mUsers.get() & CLOSING) != 0;
+    }
+}
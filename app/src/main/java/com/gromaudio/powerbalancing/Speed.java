@@ -32,4 +32,12 @@ enum Speed {
     public int getThreshold() {
         return mThreshold;
     }
+
+    static Speed fromPower(float w) {
+        if (w >= FAST.getThreshold())
+            return FAST;
+        else if (w >= AVERAGE.getThreshold())
+            return AVERAGE;
+        return SLOW;
+    }
 }
\ No newline at end of file
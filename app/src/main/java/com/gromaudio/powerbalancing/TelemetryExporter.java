@@ -0,0 +1,163 @@
+package com.gromaudio.powerbalancing;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Publishes the latest decoded hub frame into a SharedMemory region (see {@link TelemetryLayout})
+ * so other processes can read live port data without any IPC per sample.
+ * Single writer: publish*() must be called from one thread (the HubManager handler).
+ */
+class TelemetryExporter {
+    private static final String TAG = "PB:TelemetryExporter";
+
+    private static TelemetryExporter sInstance;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private int mSequence;
+    private int mHubStatus = HubManager.HUB_STATUS_DISCONNECTED;
+
+    static synchronized TelemetryExporter getInstance() {
+        if (sInstance == null) {
+            sInstance = new TelemetryExporter();
+        }
+        return sInstance;
+    }
+
+    private TelemetryExporter() {
+        SharedMemory memory = null;
+        ByteBuffer buffer = null;
+        //SharedMemory is API 27+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                memory = SharedMemory.create("pb_telemetry", TelemetryLayout.REGION_SIZE);
+                buffer = memory.mapReadWrite().order(ByteOrder.nativeOrder());
+                //Readers can only map it read-only. Our mapping stays writable.
+                memory.setProtect(OsConstants.PROT_READ);
+                initHeader(buffer);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Can't create telemetry shared memory", e);
+                if (memory != null) {
+                    memory.close();
+                }
+                memory = null;
+                buffer = null;
+            }
+        } else {
+            Log.w(TAG, "Telemetry export is not supported on API " + Build.VERSION.SDK_INT);
+        }
+        mMemory = memory;
+        mBuffer = buffer;
+    }
+
+    /**
+     * @return the region to share with readers or null if export is not available.
+     */
+    SharedMemory getSharedMemory() {
+        return mMemory;
+    }
+
+    void publishFrame(HubFrame frame) {
+        if (mBuffer != null) {
+            mSequence = writeFrame(mBuffer, mSequence, frame, mHubStatus);
+        }
+    }
+
+    void publishHubStatus(int hubStatus) {
+        mHubStatus = hubStatus;
+        if (mBuffer != null) {
+            mSequence = writeHubStatus(mBuffer, mSequence, hubStatus);
+        }
+    }
+
+    /**
+     * Nothing is polling the hub any more (disconnected or HubManager closed).
+     * Clears the port records so readers don't keep showing the last live frame.
+     */
+    void publishDisconnected(long timestampNs) {
+        mHubStatus = HubManager.HUB_STATUS_DISCONNECTED;
+        if (mBuffer != null) {
+            mSequence = writeDisconnected(mBuffer, mSequence, timestampNs);
+        }
+    }
+
+    static void initHeader(ByteBuffer b) {
+        b.putInt(TelemetryLayout.OFF_MAGIC, TelemetryLayout.MAGIC);
+        b.putInt(TelemetryLayout.OFF_VERSION, TelemetryLayout.VERSION);
+        b.putInt(TelemetryLayout.OFF_PORTS, TelemetryLayout.PORTS);
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, 0);
+        b.putInt(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_HUB_STATUS, HubManager.HUB_STATUS_DISCONNECTED);
+        b.putInt(TelemetryLayout.OFF_CHECKSUM, TelemetryLayout.checksum(b));
+    }
+
+    /**
+     * Seqlock write of a full frame.
+     * @return the new (even) sequence.
+     */
+    static int writeFrame(ByteBuffer b, int sequence, HubFrame frame, int hubStatus) {
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, sequence + 1);
+        b.putLong(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_TIMESTAMP_NS, frame.timestampNs);
+        b.putInt(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_HUB_STATUS, hubStatus);
+        b.putFloat(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_SYS_POWER, frame.sysPower);
+        for (int p = 0; p < TelemetryLayout.PORTS; ++p) {
+            HubFrame.PortFrame f = frame.ports[p];
+            int off = TelemetryLayout.portOffset(p);
+            int flags = (f.attached ? TelemetryLayout.FLAG_ATTACHED : 0)
+                    | (f.negotiated ? TelemetryLayout.FLAG_NEGOTIATED : 0)
+                    | (f.orientation ? TelemetryLayout.FLAG_ORIENTATION : 0)
+                    | (f.capMismatch ? TelemetryLayout.FLAG_CAP_MISMATCH : 0)
+                    | (f.contractOperate ? TelemetryLayout.FLAG_CONTRACT_OPERATE : 0)
+                    | (f.pbEnabled ? TelemetryLayout.FLAG_PB_ENABLED : 0);
+            b.putInt(off + TelemetryLayout.PORT_FLAGS, flags);
+            b.putInt(off + TelemetryLayout.PORT_THERMAL, thermalCode(f.thermal));
+            b.putFloat(off + TelemetryLayout.PORT_MAX_POWER, f.maxPower);
+            b.putFloat(off + TelemetryLayout.PORT_VOLTAGE, f.voltage);
+            b.putFloat(off + TelemetryLayout.PORT_CURRENT, f.current);
+            b.putFloat(off + TelemetryLayout.PORT_POWER, f.power);
+        }
+        b.putInt(TelemetryLayout.OFF_CHECKSUM, TelemetryLayout.checksum(b));
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, sequence + 2);
+        return sequence + 2;
+    }
+
+    static int writeHubStatus(ByteBuffer b, int sequence, int hubStatus) {
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, sequence + 1);
+        b.putInt(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_HUB_STATUS, hubStatus);
+        b.putInt(TelemetryLayout.OFF_CHECKSUM, TelemetryLayout.checksum(b));
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, sequence + 2);
+        return sequence + 2;
+    }
+
+    static int writeDisconnected(ByteBuffer b, int sequence, long timestampNs) {
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, sequence + 1);
+        b.putLong(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_TIMESTAMP_NS, timestampNs);
+        b.putInt(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_HUB_STATUS, HubManager.HUB_STATUS_DISCONNECTED);
+        b.putFloat(TelemetryLayout.OFF_PAYLOAD + TelemetryLayout.P_SYS_POWER, 0);
+        for (int p = 0; p < TelemetryLayout.PORTS; ++p) {
+            int off = TelemetryLayout.portOffset(p);
+            for (int field = 0; field < TelemetryLayout.PORT_SIZE; field += 4) {
+                b.putInt(off + field, 0);
+            }
+            b.putInt(off + TelemetryLayout.PORT_THERMAL, TelemetryLayout.THERMAL_NOT_IMPLEMENTED);
+        }
+        b.putInt(TelemetryLayout.OFF_CHECKSUM, TelemetryLayout.checksum(b));
+        b.putInt(TelemetryLayout.OFF_SEQUENCE, sequence + 2);
+        return sequence + 2;
+    }
+
+    private static int thermalCode(ThermalState ts) {
+        switch (ts) {
+            case NORMAL: return TelemetryLayout.THERMAL_NORMAL;
+            case WARNING: return TelemetryLayout.THERMAL_WARNING;
+            case SHUTDOWN: return TelemetryLayout.THERMAL_SHUTDOWN;
+            default: return TelemetryLayout.THERMAL_NOT_IMPLEMENTED;
+        }
+    }
+}
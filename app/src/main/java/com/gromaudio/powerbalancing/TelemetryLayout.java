@@ -0,0 +1,92 @@
+package com.gromaudio.powerbalancing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the shared memory region exported by {@link TelemetryProvider}.
+ * This is the contract between the app (single writer) and the readers in other processes.
+ *
+ * The region is a seqlock: the writer makes SEQUENCE odd, writes the payload and the checksum,
+ * then makes SEQUENCE even again. A reader copies the payload between two reads of SEQUENCE and
+ * retries if the sequence was odd or changed. java.nio gives no ordering guarantees for accesses
+ * to memory shared with another process, so the payload checksum is verified as well.
+ *
+ * All values are native byte order (both ends run on the same device).
+ */
+public final class TelemetryLayout {
+    public static final String AUTHORITY = "com.gromaudio.powerbalancing.telemetry";
+    public static final String PERMISSION = "com.gromaudio.powerbalancing.permission.READ_TELEMETRY";
+    //ContentProvider.call() method returning the SharedMemory in KEY_SHARED_MEMORY
+    public static final String METHOD_GET_SHARED_MEMORY = "getSharedMemory";
+    public static final String KEY_SHARED_MEMORY = "shared_memory";
+    public static final String KEY_LAYOUT_VERSION = "layout_version";
+
+    public static final int MAGIC = 0x50425431; //"PBT1"
+    public static final int VERSION = 1;
+
+    //Header
+    public static final int OFF_MAGIC = 0;      //int
+    public static final int OFF_VERSION = 4;    //int
+    public static final int OFF_PORTS = 8;      //int, number of port records
+    public static final int OFF_SEQUENCE = 12;  //int, seqlock: odd while the payload is being written
+    public static final int OFF_CHECKSUM = 16;  //int, FNV-1a over the payload words
+    public static final int OFF_PAYLOAD = 32;
+
+    //Payload (offsets relative to OFF_PAYLOAD)
+    public static final int P_TIMESTAMP_NS = 0; //long, SystemClock.elapsedRealtimeNanos() of the poll
+    public static final int P_HUB_STATUS = 8;   //int, HubManager.HUB_STATUS_*
+    public static final int P_SYS_POWER = 12;   //float, max shared power capacity (W)
+    public static final int P_PORT0 = 16;
+
+    //Port record (offsets relative to the port record)
+    public static final int PORT_FLAGS = 0;       //int, FLAG_*
+    public static final int PORT_THERMAL = 4;     //int, THERMAL_*
+    public static final int PORT_MAX_POWER = 8;   //float (W)
+    public static final int PORT_VOLTAGE = 12;    //float (V)
+    public static final int PORT_CURRENT = 16;    //float (A)
+    public static final int PORT_POWER = 20;      //float (W)
+    public static final int PORT_SIZE = 24;
+
+    public static final int PORTS = 2;
+    public static final int PAYLOAD_SIZE = P_PORT0 + PORTS*PORT_SIZE;
+    public static final int PAYLOAD_WORDS = PAYLOAD_SIZE / 4;
+    public static final int REGION_SIZE = OFF_PAYLOAD + PAYLOAD_SIZE;
+
+    public static final int FLAG_ATTACHED = 0x01;
+    public static final int FLAG_NEGOTIATED = 0x02;
+    public static final int FLAG_ORIENTATION = 0x04;
+    public static final int FLAG_CAP_MISMATCH = 0x08;
+    public static final int FLAG_CONTRACT_OPERATE = 0x10;
+    public static final int FLAG_PB_ENABLED = 0x20;
+
+    public static final int THERMAL_NORMAL = 0;
+    public static final int THERMAL_WARNING = 1;
+    public static final int THERMAL_SHUTDOWN = 2;
+    public static final int THERMAL_NOT_IMPLEMENTED = 3;
+
+    private TelemetryLayout() {
+    }
+
+    public static int portOffset(int portIndex) {
+        return OFF_PAYLOAD + P_PORT0 + portIndex*PORT_SIZE;
+    }
+
+    /**
+     * FNV-1a over the payload words.
+     */
+    public static int checksum(ByteBuffer b) {
+        int h = 0x811C9DC5;
+        for (int w = 0; w < PAYLOAD_WORDS; ++w) {
+            h = (h ^ b.getInt(OFF_PAYLOAD + w*4)) * 0x01000193;
+        }
+        return h;
+    }
+
+    static int checksum(int[] words) {
+        int h = 0x811C9DC5;
+        for (int w = 0; w < PAYLOAD_WORDS; ++w) {
+            h = (h ^ words[w]) * 0x01000193;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,67 @@
+package com.gromaudio.powerbalancing;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SharedMemory;
+
+/**
+ * Discovery of the telemetry shared memory for other processes.
+ * call(TelemetryLayout.METHOD_GET_SHARED_MEMORY) hands out the (read-only) region; frames are then
+ * read directly from it with {@link TelemetryReader}. Hub status changes are signalled with
+ * notifyChange(CONTENT_URI).
+ * Frames are only published while MainActivity is running (it owns the HubManager). When the hub is
+ * disconnected or the activity is destroyed, a frame with HUB_STATUS_DISCONNECTED and cleared port
+ * records is published, so readers must check getHubStatus() before using the port values.
+ */
+public class TelemetryProvider extends ContentProvider {
+    public static final Uri CONTENT_URI = Uri.parse("content://" + TelemetryLayout.AUTHORITY);
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (TelemetryLayout.METHOD_GET_SHARED_MEMORY.equals(method)) {
+            //call() is not covered by the provider's read/write permissions.
+            getContext().enforceCallingOrSelfPermission(TelemetryLayout.PERMISSION, "Telemetry read permission required");
+            Bundle res = new Bundle();
+            res.putInt(TelemetryLayout.KEY_LAYOUT_VERSION, TelemetryLayout.VERSION);
+            SharedMemory memory = TelemetryExporter.getInstance().getSharedMemory();
+            if (memory != null) {
+                res.putParcelable(TelemetryLayout.KEY_SHARED_MEMORY, memory);
+            }
+            return res;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
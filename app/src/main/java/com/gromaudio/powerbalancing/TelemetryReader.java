@@ -0,0 +1,168 @@
+package com.gromaudio.powerbalancing;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reader side of the telemetry export (see {@link TelemetryLayout}).
+ * Depends only on TelemetryLayout and the Android framework so it can be dropped into other apps.
+ *
+ * Typical use: open() once, then poll getSequence() at the rate you need and call read() when it
+ * changed. Register a ContentObserver on content://TelemetryLayout.AUTHORITY to be notified about
+ * hub status changes. Nothing here allocates after open().
+ */
+public class TelemetryReader implements Closeable {
+    private static final int MAX_RETRIES = 100;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private final int[] mSnapshot = new int[TelemetryLayout.PAYLOAD_WORDS];
+    private final int[] mScratch = new int[TelemetryLayout.PAYLOAD_WORDS];
+    private int mSnapshotSequence = -1;
+    private int mRetries;
+
+    /**
+     * Discover the exported region through the provider and map it.
+     * Requires TelemetryLayout.PERMISSION.
+     * @return the reader or null if the export is not available.
+     */
+    public static TelemetryReader open(Context context) throws ErrnoException {
+        Bundle res = context.getContentResolver().call(Uri.parse("content://" + TelemetryLayout.AUTHORITY),
+                TelemetryLayout.METHOD_GET_SHARED_MEMORY, null, null);
+        if (res == null || res.getInt(TelemetryLayout.KEY_LAYOUT_VERSION) != TelemetryLayout.VERSION) {
+            return null;
+        }
+        SharedMemory memory = res.getParcelable(TelemetryLayout.KEY_SHARED_MEMORY);
+        if (memory == null) {
+            return null;
+        }
+        return new TelemetryReader(memory, memory.mapReadOnly());
+    }
+
+    /**
+     * @param memory the region, closed by close(). May be null if the caller owns the mapping.
+     * @param buffer a mapping of the region.
+     */
+    TelemetryReader(SharedMemory memory, ByteBuffer buffer) {
+        mMemory = memory;
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+        if (mBuffer.getInt(TelemetryLayout.OFF_MAGIC) != TelemetryLayout.MAGIC
+                || mBuffer.getInt(TelemetryLayout.OFF_VERSION) != TelemetryLayout.VERSION) {
+            throw new IllegalArgumentException("Not a telemetry region");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mMemory != null) {
+            SharedMemory.unmap(mBuffer);
+            mMemory.close();
+        }
+    }
+
+    /**
+     * Current writer sequence. Cheap: a single memory read.
+     * It is even when a frame is complete and changes on every published frame.
+     */
+    public int getSequence() {
+        return mBuffer.getInt(TelemetryLayout.OFF_SEQUENCE);
+    }
+
+    /**
+     * Take a consistent snapshot of the latest frame. Getters return values of this snapshot.
+     * @return false if no consistent frame could be read (the writer kept overwriting it).
+     */
+    public boolean read() {
+        final ByteBuffer b = mBuffer;
+        final int[] scratch = mScratch;
+        for (int attempt = 0; attempt < MAX_RETRIES; ++attempt) {
+            int seq1 = b.getInt(TelemetryLayout.OFF_SEQUENCE);
+            if ((seq1 & 1) != 0) {
+                mRetries++;
+                continue;
+            }
+            for (int w = 0; w < TelemetryLayout.PAYLOAD_WORDS; ++w) {
+                scratch[w] = b.getInt(TelemetryLayout.OFF_PAYLOAD + w*4);
+            }
+            int checksum = b.getInt(TelemetryLayout.OFF_CHECKSUM);
+            int seq2 = b.getInt(TelemetryLayout.OFF_SEQUENCE);
+            if (seq1 != seq2 || checksum != TelemetryLayout.checksum(scratch)) {
+                mRetries++;
+                continue;
+            }
+            System.arraycopy(scratch, 0, mSnapshot, 0, scratch.length);
+            mSnapshotSequence = seq1;
+            return true;
+        }
+        return false;
+    }
+
+    //Number of torn/in-progress reads that had to be retried so far.
+    public int getRetries() {
+        return mRetries;
+    }
+
+    //Sequence of the current snapshot (-1 if read() never succeeded).
+    public int getSnapshotSequence() {
+        return mSnapshotSequence;
+    }
+
+    public long getTimestampNs() {
+        int off = TelemetryLayout.P_TIMESTAMP_NS / 4;
+        long w0 = mSnapshot[off] & 0xFFFFFFFFL;
+        long w1 = mSnapshot[off + 1] & 0xFFFFFFFFL;
+        return (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? (w1 << 32) | w0 : (w0 << 32) | w1;
+    }
+
+    public int getHubStatus() {
+        return mSnapshot[TelemetryLayout.P_HUB_STATUS / 4];
+    }
+
+    public float getSysPower() {
+        return Float.intBitsToFloat(mSnapshot[TelemetryLayout.P_SYS_POWER / 4]);
+    }
+
+    /**
+     * @param portIndex 0 based port record index
+     * @return TelemetryLayout.FLAG_* bits
+     */
+    public int getPortFlags(int portIndex) {
+        return portWord(portIndex, TelemetryLayout.PORT_FLAGS);
+    }
+
+    public boolean isAttached(int portIndex) {
+        return (getPortFlags(portIndex) & TelemetryLayout.FLAG_ATTACHED) != 0;
+    }
+
+    //TelemetryLayout.THERMAL_*
+    public int getThermal(int portIndex) {
+        return portWord(portIndex, TelemetryLayout.PORT_THERMAL);
+    }
+
+    public float getMaxPower(int portIndex) {
+        return Float.intBitsToFloat(portWord(portIndex, TelemetryLayout.PORT_MAX_POWER));
+    }
+
+    public float getVoltage(int portIndex) {
+        return Float.intBitsToFloat(portWord(portIndex, TelemetryLayout.PORT_VOLTAGE));
+    }
+
+    public float getCurrent(int portIndex) {
+        return Float.intBitsToFloat(portWord(portIndex, TelemetryLayout.PORT_CURRENT));
+    }
+
+    public float getPower(int portIndex) {
+        return Float.intBitsToFloat(portWord(portIndex, TelemetryLayout.PORT_POWER));
+    }
+
+    private int portWord(int portIndex, int field) {
+        return mSnapshot[(TelemetryLayout.P_PORT0 + portIndex*TelemetryLayout.PORT_SIZE + field) / 4];
+    }
+}
@@ -0,0 +1,135 @@
+package com.gromaudio.powerbalancing;
+
+import java.util.ArrayList;
+
+/**
+ * Allocation-free replacement of String.format() for the "%1$.1f" style string resources
+ * (e.g. "%1$.1fV @ %2$.1fA"). The pattern is parsed once; values are passed as tenths and
+ * written into a caller provided char buffer.
+ */
+class TenthsFormat {
+    private static final int MAX_NUMBER_CHARS = 12; //"-214748364.8"
+
+    private final String[] mLiterals; //mLiterals[i] precedes argument mArgs[i]; the last one trails
+    private final int[] mArgs;
+    private final char mDecimalSeparator;
+    private final int mMaxLength;
+
+    /**
+     * @param pattern format with "%N$.1f" (or "%.1f") arguments only. "%%" is supported.
+     */
+    TenthsFormat(String pattern, char decimalSeparator) {
+        mDecimalSeparator = decimalSeparator;
+        ArrayList<String> literals = new ArrayList<>();
+        ArrayList<Integer> args = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int nextArg = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                ++i;
+                continue;
+            }
+            if (pattern.startsWith("%%", i)) {
+                literal.append('%');
+                i += 2;
+                continue;
+            }
+            int j = i + 1;
+            int arg = nextArg;
+            int dollar = pattern.indexOf('$', j);
+            if (dollar > j && isDigits(pattern, j, dollar)) {
+                arg = Integer.parseInt(pattern.substring(j, dollar)) - 1;
+                j = dollar + 1;
+            }
+            if (!pattern.startsWith(".1f", j)) {
+                throw new IllegalArgumentException("Unsupported format: " + pattern);
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            args.add(arg);
+            nextArg = arg + 1;
+            i = j + 3;
+        }
+        literals.add(literal.toString());
+
+        mLiterals = literals.toArray(new String[0]);
+        mArgs = new int[args.size()];
+        int len = 0;
+        for (int a = 0; a < mArgs.length; ++a) {
+            mArgs[a] = args.get(a);
+            len += MAX_NUMBER_CHARS;
+        }
+        for (String l : mLiterals) {
+            len += l.length();
+        }
+        mMaxLength = len;
+    }
+
+    private static boolean isDigits(String s, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (!Character.isDigit(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    //Size of the buffer format() needs.
+    int getMaxLength() {
+        return mMaxLength;
+    }
+
+    int getArgCount() {
+        return mArgs.length;
+    }
+
+    /**
+     * Round to tenths the same way as "%.1f" (half up, symmetric around zero).
+     */
+    static int toTenths(float value) {
+        return (value >= 0) ? (int)(value*10 + 0.5f) : -(int)(-value*10 + 0.5f);
+    }
+
+    /**
+     * @param tenths argument values, in tenths
+     * @param out buffer of at least getMaxLength() chars
+     * @return number of chars written
+     */
+    int format(int[] tenths, char[] out) {
+        int pos = 0;
+        for (int a = 0; a < mArgs.length; ++a) {
+            pos = appendLiteral(mLiterals[a], out, pos);
+            pos = appendTenths(tenths[mArgs[a]], out, pos);
+        }
+        return appendLiteral(mLiterals[mArgs.length], out, pos);
+    }
+
+    private static int appendLiteral(String s, char[] out, int pos) {
+        int len = s.length();
+        s.getChars(0, len, out, pos);
+        return pos + len;
+    }
+
+    private int appendTenths(int t, char[] out, int pos) {
+        long v = t;
+        if (v < 0) {
+            out[pos++] = '-';
+            v = -v;
+        }
+        long whole = v / 10;
+        //digits of the integer part, written backwards
+        int digits = 1;
+        for (long w = whole; w >= 10; w /= 10) {
+            ++digits;
+        }
+        for (int d = digits - 1; d >= 0; --d) {
+            out[pos + d] = (char)('0' + (whole % 10));
+            whole /= 10;
+        }
+        pos += digits;
+        out[pos++] = mDecimalSeparator;
+        out[pos++] = (char)('0' + (v % 10));
+        return pos;
+    }
+}
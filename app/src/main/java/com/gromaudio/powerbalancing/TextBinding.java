@@ -0,0 +1,55 @@
+package com.gromaudio.powerbalancing;
+
+import android.text.Editable;
+import android.widget.TextView;
+
+import java.nio.CharBuffer;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+
+/**
+ * Binds formatted values to a TextView.
+ * The view is updated only if the displayed text would change. The text is formatted into a
+ * reused buffer (see {@link TenthsFormat}) and copied into the view's own Editable, so nothing is
+ * allocated per update (setText() would wrap or copy the text every time).
+ */
+class TextBinding {
+    private final Editable mText;
+    private final TenthsFormat mFormat;
+    private final char[] mBuffer;
+    private final CharBuffer mChars;
+    private final int[] mTenths;
+    private final int[] mShown;
+    private boolean mValid;
+
+    TextBinding(TextView view, String pattern) {
+        view.setText("", TextView.BufferType.EDITABLE);
+        mText = view.getEditableText();
+        mFormat = new TenthsFormat(pattern, DecimalFormatSymbols.getInstance().getDecimalSeparator());
+        mBuffer = new char[mFormat.getMaxLength()];
+        mChars = CharBuffer.wrap(mBuffer);
+        mTenths = new int[mFormat.getArgCount()];
+        mShown = new int[mFormat.getArgCount()];
+    }
+
+    void set(float value) {
+        mTenths[0] = TenthsFormat.toTenths(value);
+        apply();
+    }
+
+    void set(float value1, float value2) {
+        mTenths[0] = TenthsFormat.toTenths(value1);
+        mTenths[1] = TenthsFormat.toTenths(value2);
+        apply();
+    }
+
+    private void apply() {
+        if (mValid && Arrays.equals(mTenths, mShown)) {
+            return;
+        }
+        int len = mFormat.format(mTenths, mBuffer);
+        mText.replace(0, mText.length(), mChars, 0, len);
+        System.arraycopy(mTenths, 0, mShown, 0, mTenths.length);
+        mValid = true;
+    }
+}
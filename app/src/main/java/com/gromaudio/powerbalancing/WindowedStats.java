@@ -0,0 +1,56 @@
+package com.gromaudio.powerbalancing;
+
+/**
+ * Sliding window over a stream of values built from a ring of {@link MetricSketch} slots.
+ * Each slot summarizes window/slots of time; slots are recycled when the window moves past
+ * them, so memory is fixed and no samples are kept.
+ * The window has slot granularity: a query covers the current (partial) slot and the
+ * (slots - 1) previous ones.
+ */
+class WindowedStats {
+    private final long mSlotNs;
+    private final MetricSketch[] mSlots;
+    private final long[] mSlotEpochs; //slot number (timestamp / mSlotNs) stored in each slot
+
+    WindowedStats(long windowNs, int slots, float lo, float hi, int bins) {
+        mSlotNs = windowNs / slots;
+        mSlots = new MetricSketch[slots];
+        mSlotEpochs = new long[slots];
+        for (int s = 0; s < slots; ++s) {
+            mSlots[s] = new MetricSketch(lo, hi, bins);
+            mSlotEpochs[s] = Long.MIN_VALUE;
+        }
+    }
+
+    void add(long timestampNs, float value) {
+        long epoch = timestampNs / mSlotNs;
+        int idx = (int)(epoch % mSlots.length);
+        if (mSlotEpochs[idx] != epoch) {
+            mSlots[idx].reset();
+            mSlotEpochs[idx] = epoch;
+        }
+        mSlots[idx].add(value);
+    }
+
+    /**
+     * Summarize the window ending at nowNs.
+     * @param out reset and filled with the merged window.
+     */
+    void query(long nowNs, MetricSketch out) {
+        out.reset();
+        long epoch = nowNs / mSlotNs;
+        for (int s = 0; s < mSlots.length; ++s) {
+            long e = mSlotEpochs[s];
+            if (e <= epoch && e > epoch - mSlots.length) {
+                out.merge(mSlots[s]);
+            }
+        }
+    }
+
+    void clear() {
+        for (int s = 0; s < mSlots.length; ++s) {
+            mSlots[s].reset();
+            mSlotEpochs[s] = Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Evaluation cost of 300 compiled rules over 64 ports (printed, not asserted).
+ * Not part of the default unit test run: ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+public class AlertEngineBenchmark {
+    @Test
+    public void evaluate() {
+        final int ruleCount = 300;
+        final int ports = 64;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ruleCount; ++i) {
+            switch (i % 4) {
+                case 0: text.append("r").append(i).append(": attached and power > 0.").append(i % 10).append(" * maxpower for 30s clear 5s\n"); break;
+                case 1: text.append("r").append(i).append(": cap_mismatch and not negotiated for 2s\n"); break;
+                case 2: text.append("r").append(i).append(": thermal >= WARNING or voltage * current > ").append(i).append("\n"); break;
+                default: text.append("r").append(i).append(": changed sys_pwr\n"); break;
+            }
+        }
+        AlertEngine engine = new AlertEngine(AlertRules.compile(text.toString()), ports);
+        final int[] fired = new int[1];
+        engine.setListener(new AlertEngine.IAlertListener() {
+            @Override
+            public void onAlert(String rule, int port, boolean active, long timestampNs) {
+                fired[0]++;
+            }
+        });
+        HubFrame.PortFrame[] frames = new HubFrame.PortFrame[ports];
+        for (int p = 0; p < ports; ++p) {
+            frames[p] = new HubFrame.PortFrame();
+            frames[p].attached = true;
+            frames[p].maxPower = 60;
+            frames[p].voltage = 20;
+        }
+
+        final int iterations = 20000;
+        long t0 = 0;
+        for (int i = 0; i < iterations * 2; ++i) {
+            if (i == iterations) {
+                t0 = System.nanoTime(); //First half is warm-up
+            }
+            for (int p = 0; p < ports; ++p) {
+                HubFrame.PortFrame f = frames[p];
+                f.current = ((i + p) % 100) * 0.03f;
+                f.power = f.voltage * f.current;
+                f.capMismatch = ((i + p) % 50) == 0;
+                engine.setPort(p + 1, f);
+            }
+            engine.setSystem(100 - (i / 1000) % 2 * 40);
+            engine.evaluate(i * 50L * 1000 * 1000); //20 Hz
+        }
+        long t1 = System.nanoTime();
+        System.out.println(String.format("AlertEngine: %d rules x %d ports: %.1f us/frame, %.1f ns/rule/port (%d alerts)",
+                ruleCount, ports, (t1 - t0) / 1000.0 / iterations,
+                (t1 - t0) / (double)iterations / (ruleCount * 3 / 4 * ports + ruleCount / 4), fired[0]));
+        assertTrue(fired[0] > 0);
+    }
+}
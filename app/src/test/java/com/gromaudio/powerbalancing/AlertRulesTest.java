@@ -0,0 +1,129 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Alert rules compiler and engine (evaluation cost in AlertEngineBenchmark).
+ */
+public class AlertRulesTest {
+    private static final long SEC = 1000L * 1000 * 1000;
+
+    private static final class Recorder implements AlertEngine.IAlertListener {
+        final ArrayList<String> events = new ArrayList<>();
+
+        @Override
+        public void onAlert(String rule, int port, boolean active, long timestampNs) {
+            events.add(rule + ":" + port + ":" + (active ? "on" : "off") + "@" + (timestampNs / SEC));
+        }
+    }
+
+    private static HubFrame frame(long ts, float p1Power, float p1Max, ThermalState p2Thermal, float sysPower) {
+        HubFrame f = new HubFrame();
+        f.timestampNs = ts;
+        f.sysPower = sysPower;
+        HubFrame.PortFrame p1 = f.ports[0];
+        p1.attached = p1Power > 0;
+        p1.power = p1Power;
+        p1.maxPower = p1Max;
+        f.ports[1].thermal = p2Thermal;
+        return f;
+    }
+
+    @Test
+    public void powerHighWithDurationAndHysteresis() {
+        AlertEngine engine = new AlertEngine(AlertRules.compile(
+                "high: attached and power > 0.9 * maxpower for 30s clear 10s"), HubFrame.PORTS);
+        Recorder r = new Recorder();
+        engine.setListener(r);
+
+        for (int t = 0; t <= 40; ++t) {
+            //Over 90% of 60 W from t=5 to t=30 (25 s: not raised), then from t=32
+            float power = ((t >= 5 && t < 30) || t >= 32) ? 55 : 20;
+            engine.onFrame(frame(t * SEC, power, 60, ThermalState.NORMAL, 100));
+        }
+        assertTrue(r.events.isEmpty());
+        for (int t = 41; t <= 70; ++t) {
+            float power = (t < 65) ? 55 : 20;
+            engine.onFrame(frame(t * SEC, power, 60, ThermalState.NORMAL, 100));
+        }
+        //Raised 30 s after t=32; low at t=65 for 5 s: not cleared yet
+        assertEquals("[high:1:on@62]", r.events.toString());
+        assertTrue(engine.isActive(0, 1));
+        assertFalse(engine.isActive(0, 2));
+        for (int t = 71; t <= 80; ++t) {
+            engine.onFrame(frame(t * SEC, 20, 60, ThermalState.NORMAL, 100));
+        }
+        assertEquals("[high:1:on@62, high:1:off@75]", r.events.toString());
+    }
+
+    @Test
+    public void thermalAndChanged() {
+        AlertEngine engine = new AlertEngine(AlertRules.compile(
+                "# comment\n\nthermal_warning: thermal == WARNING\nsys_changed: changed sys_pwr  # hub wide\n"), HubFrame.PORTS);
+        Recorder r = new Recorder();
+        engine.setListener(r);
+        engine.onFrame(frame(0, 0, 60, ThermalState.NORMAL, 100));
+        engine.onFrame(frame(SEC, 0, 60, ThermalState.WARNING, 100));
+        engine.onFrame(frame(2 * SEC, 0, 60, ThermalState.WARNING, 60));
+        engine.onFrame(frame(3 * SEC, 0, 60, ThermalState.NORMAL, 60));
+        assertEquals("[thermal_warning:2:on@1, sys_changed:0:on@2, thermal_warning:2:off@3, sys_changed:0:off@3]",
+                r.events.toString());
+    }
+
+    @Test
+    public void precedenceAndArithmetic() {
+        AlertEngine engine = new AlertEngine(AlertRules.compile(
+                "a: not attached or power - 10 >= -(2 * 3) and (voltage < 5 or current != 0)"), 1);
+        HubFrame.PortFrame f = new HubFrame.PortFrame();
+        f.attached = true;
+        f.power = 4;      //4 - 10 >= -6
+        f.voltage = 9;
+        f.current = 1;
+        engine.setPort(1, f);
+        engine.evaluate(0);
+        assertTrue(engine.isActive(0, 1));
+        f.power = 3.5f;
+        engine.setPort(1, f);
+        engine.evaluate(SEC);
+        assertFalse(engine.isActive(0, 1));
+    }
+
+    @Test
+    public void syntaxErrorsReportLine() {
+        String[] bad = {
+                "ok: attached\nbroken attached",
+                "ok: attached\nx: power >",
+                "ok: attached\nx: volts > 5",
+                "ok: attached\nx: power > 5 for 30",
+                "ok: attached\nok: power > 5",
+                "ok: attached\nx: (power > 5",
+        };
+        for (String text : bad) {
+            try {
+                AlertRules.compile(text);
+                fail(text);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("line 2:"));
+            }
+        }
+    }
+
+    @Test
+    public void shippedRulesCompile() throws Exception {
+        File f = new File("src/main/res/raw/alert_rules.txt");
+        if (!f.exists()) {
+            f = new File("app/" + f.getPath());
+        }
+        AlertRules rules = AlertRules.compile(new String(Files.readAllBytes(f.toPath()), "UTF-8"));
+        assertEquals(5, rules.size());
+    }
+}
@@ -0,0 +1,77 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class BurstCaptureTest {
+    private static final long MS_NS = 1000L * 1000;
+
+    @Test
+    public void fillAndDecode() {
+        BurstCapture c = new BurstCapture(3);
+        c.start(2, BurstCapture.TRIGGER_ATTACH, HubFrameTest.portPower(90, true));
+        //attach -> negotiated -> contract operating at 15V
+        assertTrue(c.add(0, HubFrameTest.portParams(true, false, false, false, 100, 300, 0)));
+        assertTrue(c.add(20 * MS_NS, HubFrameTest.portParams(true, true, false, false, 300, 600, 0)));
+        assertFalse(c.add(40 * MS_NS, HubFrameTest.portParams(true, true, false, true, 300, 600, 750)));
+        assertFalse(c.add(60 * MS_NS, HubFrameTest.portParams(false, false, false, false, 0, 0, 0)));
+
+        assertEquals(3, c.getCount());
+        assertEquals(2, c.getPort());
+        assertEquals(40 * MS_NS, c.getDurationNs());
+        assertEquals(50.0f, c.getSampleRate(), 1e-3);
+
+        byte[] buff = new byte[32];
+        HubFrame.PortFrame f = new HubFrame.PortFrame();
+        c.decode(0, buff, f);
+        assertFalse(f.negotiated);
+        assertEquals(5.0f, f.voltage, 0);
+        c.decode(2, buff, f);
+        assertTrue(f.contractOperate);
+        assertEquals(15.0f, f.voltage, 1e-4);
+        assertEquals(45.0f, f.maxPower, 0);
+
+        StringWriter sw = new StringWriter();
+        c.writeCsv(new PrintWriter(sw));
+        String[] lines = sw.toString().split("\n");
+        assertEquals(2 + 3, lines.length);
+        assertTrue(lines[0].contains("trigger=attach"));
+        assertTrue(lines[4].startsWith("40000,"));
+    }
+
+    @Test
+    public void copy_isIndependent() {
+        BurstCapture c = new BurstCapture(8);
+        c.start(1, BurstCapture.TRIGGER_DETACH, HubFrameTest.portPower(90, true));
+        c.add(0, HubFrameTest.portParams(true, true, false, false, 100, 300, 0));
+        c.add(10 * MS_NS, HubFrameTest.portParams(false, false, false, false, 0, 0, 0));
+        c.fail(20 * MS_NS);
+
+        BurstCapture copy = c.copy();
+        c.start(1, BurstCapture.TRIGGER_MANUAL, HubFrameTest.portPower(90, true));
+
+        assertEquals(2, copy.getCount());
+        assertTrue(copy.isFailed());
+        assertEquals(BurstCapture.TRIGGER_DETACH, copy.getTrigger());
+        assertEquals(10 * MS_NS, copy.getTimestampNs(1));
+        HubFrame.PortFrame f = new HubFrame.PortFrame();
+        copy.decode(0, new byte[32], f);
+        assertTrue(f.negotiated);
+        assertFalse(c.isFailed());
+    }
+
+    @Test
+    public void restart_clearsSamples() {
+        BurstCapture c = new BurstCapture(8);
+        byte[] power = HubFrameTest.portPower(90, true);
+        c.start(1, BurstCapture.TRIGGER_MANUAL, power);
+        c.add(0, HubFrameTest.portParams(true, true, false, false, 100, 300, 0));
+        c.start(1, BurstCapture.TRIGGER_THERMAL, power);
+        assertEquals(0, c.getCount());
+        assertEquals(BurstCapture.TRIGGER_THERMAL, c.getTrigger());
+    }
+}
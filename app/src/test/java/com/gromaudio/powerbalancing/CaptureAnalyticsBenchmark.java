@@ -0,0 +1,86 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fork/join throughput and speedup over synthetic captures (printed, not asserted).
+ * Speedup is only measured with more than one core available; nothing is claimed about scaling
+ * until it has been.
+ * Not part of the default unit test run: ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+public class CaptureAnalyticsBenchmark {
+    @Test
+    public void analyze() throws IOException {
+        final int files = 4;
+        final int records = 500 * 1000;
+        File[] captures = new File[files];
+        try {
+            byte[] sys = HubFrameTest.sysConfig(100000);
+            byte[] power = HubFrameTest.portPower(120, true);
+            for (int n = 0; n < files; ++n) {
+                captures[n] = File.createTempFile("bench", ".pbc");
+                CaptureFile.Writer w = new CaptureFile.Writer(new FileOutputStream(captures[n]), "fw" + (n % 2));
+                byte[][] params = new byte[64][];
+                for (int v = 0; v < params.length; ++v) {
+                    params[v] = HubFrameTest.portParams(v % 8 != 0, v % 4 != 0, v % 16 == 3, v % 2 == 0, 100 + v * 5, 300 + v * 10, 250);
+                }
+                byte[] thermal = new byte[2];
+                for (int i = 0; i < records; ++i) {
+                    thermal[0] = (byte)((i / 1000) % 3);
+                    w.write(i * 50L * 1000 * 1000, 0, thermal, sys, params[(i / 20) & 63], power, params[(i / 33) & 63], power);
+                }
+                w.close();
+            }
+
+            //1 thread, then doubling up to the number of cores
+            int cores = Runtime.getRuntime().availableProcessors();
+            if (cores == 1) {
+                System.out.println("CaptureAnalytics: single core, speedup not measured");
+            }
+            long singleNs = 0;
+            for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    CaptureAnalytics analytics = new CaptureAnalytics(pool, CaptureAnalytics.DEFAULT_LEAF_RECORDS);
+                    analytics.analyze(Arrays.asList(captures)); //warm-up
+                    long t0 = System.nanoTime();
+                    Map<String, CaptureStats> r = analytics.analyze(Arrays.asList(captures));
+                    long t = System.nanoTime() - t0;
+                    long frames = 0;
+                    for (CaptureStats s : r.values()) {
+                        frames += s.frames;
+                    }
+                    assertEquals((long)files * records, frames);
+                    assertTrue(r.get("fw0").capMismatchEvents > 0);
+                    if (threads == 1) {
+                        singleNs = t;
+                    }
+                    double speedup = singleNs / (double)t;
+                    System.out.println(String.format("CaptureAnalytics: %d threads: %d frames in %.0f ms, %.1f M frames/min, speedup %.2fx (%.0f%% of linear)",
+                            threads, frames, t / 1e6, frames * 60e3 / t, speedup, speedup * 100 / threads));
+                } finally {
+                    pool.shutdown();
+                }
+                if (threads >= cores) {
+                    break;
+                }
+            }
+        } finally {
+            for (File f : captures) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+        }
+    }
+}
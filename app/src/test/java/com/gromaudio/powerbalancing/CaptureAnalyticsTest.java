@@ -0,0 +1,122 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Capture file round trip and fork/join analytics (throughput in CaptureAnalyticsBenchmark).
+ */
+public class CaptureAnalyticsTest {
+    private static final long SEC = 1000L * 1000 * 1000;
+
+    //50 polls, 1 s apart except a 100 s gap before poll 41.
+    private static File scenario(String firmware) throws IOException {
+        File f = File.createTempFile("capture", ".pbc");
+        f.deleteOnExit();
+        CaptureFile.Writer w = new CaptureFile.Writer(new FileOutputStream(f), firmware);
+        byte[] sys = HubFrameTest.sysConfig(100000);
+        byte[] power = HubFrameTest.portPower(120, true);
+        byte[] p3 = HubFrameTest.portParams(true, false, false, false, 0, 0, 0);
+        for (int i = 0; i < 50; ++i) {
+            long ts = (i + (i >= 41 ? 100 : 0)) * SEC;
+            boolean attached = i >= 10;
+            boolean negotiated = i >= 12;
+            boolean capMismatch = i == 15 || i == 16 || i == 20;
+            byte[] thermal = new byte[2];
+            thermal[0] = (byte)((i >= 30 && i < 40) ? 0x01 : 0x00); //port1 WARNING
+            byte[] p1 = HubFrameTest.portParams(attached, negotiated, capMismatch, false, 400, 600, 0); //20V 3A
+            w.write(ts, (i % 10 == 0) ? 0 : CaptureFile.FLAG_PARTIAL, thermal, sys, p1, power, p3, power);
+        }
+        w.close();
+        return f;
+    }
+
+    private static void assertScenario(CaptureStats s, int files) {
+        assertEquals(50 * files, s.frames);
+        assertEquals(48 * SEC * files, s.durationNs);
+        assertEquals((38 + 48) * SEC * files, s.attachedNs);
+        assertEquals(10 * SEC * files, s.warningNs);
+        assertEquals(2 * files, s.capMismatchEvents);
+        long[] tiers = new long[NegotiationTracker.TIERS];
+        tiers[NegotiationTracker.tierOf(60)] = 36 * SEC * files;
+        assertArrayEquals(tiers, s.tierNs);
+        long[] contracts = new long[NegotiationTracker.TIERS];
+        contracts[NegotiationTracker.tierOf(60)] = files;
+        assertArrayEquals(contracts, s.contracts);
+    }
+
+    @Test
+    public void analyzeByFirmware() throws IOException {
+        File a = scenario("0100");
+        File b = scenario("0200");
+        File c = scenario("0100");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int leaf : new int[] { 1, 3, 7, CaptureAnalytics.DEFAULT_LEAF_RECORDS }) {
+                Map<String, CaptureStats> r = new CaptureAnalytics(pool, leaf).analyze(Arrays.asList(a, b, c));
+                assertEquals("[0100, 0200]", r.keySet().toString());
+                assertScenario(r.get("0100"), 2);
+                assertScenario(r.get("0200"), 1);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void header_truncatesFirmwareByEncodedLength() throws IOException {
+        String ascii = new String(new char[100]).replace('\0', 'a');
+        assertEquals(CaptureFile.MAX_FIRMWARE_BYTES, CaptureFile.truncateUtf(ascii, CaptureFile.MAX_FIRMWARE_BYTES).length());
+        //3 bytes per char
+        String cjk = new String(new char[40]).replace('\0', '\u4e2d');
+        assertEquals(CaptureFile.MAX_FIRMWARE_BYTES / 3, CaptureFile.truncateUtf(cjk, CaptureFile.MAX_FIRMWARE_BYTES).length());
+        //Don't split a surrogate pair (4 bytes as 2 chars of 3)
+        assertEquals("a", CaptureFile.truncateUtf("a\ud83d\ude00", 6));
+
+        File f = File.createTempFile("capture", ".pbc");
+        f.deleteOnExit();
+        new CaptureFile.Writer(new FileOutputStream(f), cjk).close();
+        assertEquals(CaptureFile.HEADER_SIZE, f.length());
+        FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+        try {
+            assertEquals(cjk.substring(0, CaptureFile.MAX_FIRMWARE_BYTES / 3), CaptureFile.readHeader(channel).firmware);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void recordFlags() {
+        byte[] b = new byte[CaptureFile.RECORD_SIZE];
+        byte[] z = new byte[32];
+        CaptureFile.encode(b, 0, 7, CaptureFile.FLAG_PARTIAL, z, z, z, z, z, z);
+        assertEquals(CaptureFile.FLAG_PARTIAL, CaptureFile.getFlags(b, 0));
+        assertEquals(7, CaptureFile.getTimestamp(b, 0));
+    }
+
+    @Test
+    public void ignoresPartialRecord() throws IOException {
+        File f = scenario("0100");
+        FileOutputStream out = new FileOutputStream(f, true);
+        out.write(new byte[CaptureFile.RECORD_SIZE / 2]);
+        out.close();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Map<String, CaptureStats> r = new CaptureAnalytics(pool, 16).analyze(Arrays.asList(f));
+            assertScenario(r.get("0100"), 1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
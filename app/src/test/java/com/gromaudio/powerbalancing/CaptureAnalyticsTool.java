@@ -0,0 +1,46 @@
+package com.gromaudio.powerbalancing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Workstation entry point of {@link CaptureAnalytics}. Kept with the unit test sources so it
+ * doesn't ship in the APK; run it with:
+ *
+ *   ./gradlew :app:captureAnalytics -Pcaptures=capture1.pbc,capture2.pbc
+ *
+ * Relative paths are resolved against the project root.
+ */
+public class CaptureAnalyticsTool {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: ./gradlew :app:captureAnalytics -Pcaptures=<capture file>,...");
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<>();
+        for (String a : args) {
+            files.add(new File(a));
+        }
+        long t0 = System.nanoTime();
+        Map<String, CaptureStats> byFirmware = new CaptureAnalytics(ForkJoinPool.commonPool(),
+                CaptureAnalytics.DEFAULT_LEAF_RECORDS).analyze(files);
+        long t1 = System.nanoTime();
+        PrintWriter pw = new PrintWriter(System.out);
+        CaptureStats total = new CaptureStats();
+        for (Map.Entry<String, CaptureStats> e : byFirmware.entrySet()) {
+            pw.println("firmware " + e.getKey() + ":");
+            e.getValue().dump("  ", pw);
+            total.merge(e.getValue());
+        }
+        pw.println("all:");
+        total.dump("  ", pw);
+        pw.println(String.format("%d frames in %.2f s (%.1f M frames/min, %d threads)", total.frames, (t1 - t0) / 1e9,
+                total.frames * 60e3 / (t1 - t0), ForkJoinPool.commonPool().getParallelism()));
+        pw.flush();
+    }
+}
@@ -0,0 +1,140 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateTest {
+
+    @Test
+    public void lifecycle() {
+        ConnectionState cs = new ConnectionState();
+        long s = cs.startDiscovery();
+        assertEquals(ConnectionState.DISCOVERING, ConnectionState.state(s));
+        assertTrue(cs.startDiscovery() < 0);
+
+        assertTrue(cs.transition(s, ConnectionState.AWAITING_PERMISSION));
+        s = cs.get();
+        assertTrue(cs.transition(s, ConnectionState.OPEN));
+        s = cs.get();
+        assertTrue(ConnectionState.isConnected(s));
+        assertTrue(cs.transition(s, ConnectionState.DEGRADED));
+        s = cs.get();
+        assertTrue(cs.transition(s, ConnectionState.POLLING));
+        assertEquals(ConnectionState.POLLING, ConnectionState.state(cs.get()));
+    }
+
+    @Test
+    public void illegalTransitionRejected() {
+        ConnectionState cs = new ConnectionState();
+        long s = cs.startDiscovery();
+        assertFalse(cs.transition(s, ConnectionState.POLLING));
+        assertEquals(s, cs.get());
+    }
+
+    @Test
+    public void staleGenerationIgnored() {
+        ConnectionState cs = new ConnectionState();
+        long s = cs.startDiscovery();
+        cs.transition(s, ConnectionState.AWAITING_PERMISSION);
+        long awaiting = cs.get();
+
+        //Unplugged and discovered again while the permission dialog was up
+        cs.close();
+        long s2 = cs.startDiscovery();
+        assertTrue(ConnectionState.generation(s2) != ConnectionState.generation(awaiting));
+        cs.transition(s2, ConnectionState.AWAITING_PERMISSION);
+
+        //Answer to the first request
+        assertFalse(cs.transition(awaiting, ConnectionState.OPEN));
+        assertEquals(ConnectionState.AWAITING_PERMISSION, ConnectionState.state(cs.get()));
+    }
+
+    @Test
+    public void stalePermissionResultDropped() {
+        ConnectionState cs = new ConnectionState();
+        long s = cs.startDiscovery();
+        cs.transition(s, ConnectionState.AWAITING_PERMISSION);
+        int first = ConnectionState.generation(cs.get());
+
+        cs.close();
+        long s2 = cs.startDiscovery();
+        cs.transition(s2, ConnectionState.AWAITING_PERMISSION);
+        int second = ConnectionState.generation(cs.get());
+
+        //The grant of the first dialog arrives after the second request
+        assertFalse(ConnectionState.isAwaitingPermission(cs.get(), first));
+        assertTrue(ConnectionState.isAwaitingPermission(cs.get(), second));
+
+        //No result is accepted once the connection is open
+        assertTrue(cs.transition(cs.get(), ConnectionState.OPEN));
+        assertFalse(ConnectionState.isAwaitingPermission(cs.get(), second));
+    }
+
+    @Test
+    public void unansweredPermissionExpires() {
+        ConnectionState cs = new ConnectionState();
+        long s = cs.startDiscovery();
+        cs.transition(s, ConnectionState.AWAITING_PERMISSION);
+        int generation = ConnectionState.generation(cs.get());
+        //Still waiting: discovery is skipped
+        assertEquals(-1, cs.startDiscovery());
+
+        assertTrue(cs.expirePermission(generation));
+        assertEquals(ConnectionState.CLOSED, ConnectionState.state(cs.get()));
+        assertFalse(cs.expirePermission(generation));
+        //A late answer is stale and discovery can start over
+        assertFalse(ConnectionState.isAwaitingPermission(cs.get(), generation));
+        assertTrue(cs.startDiscovery() >= 0);
+    }
+
+    @Test
+    public void answeredPermissionDoesNotExpire() {
+        ConnectionState cs = new ConnectionState();
+        long s = cs.startDiscovery();
+        cs.transition(s, ConnectionState.AWAITING_PERMISSION);
+        int generation = ConnectionState.generation(cs.get());
+        assertTrue(cs.transition(cs.get(), ConnectionState.OPEN));
+        assertFalse(cs.expirePermission(generation));
+        assertEquals(ConnectionState.OPEN, ConnectionState.state(cs.get()));
+    }
+
+    @Test
+    public void closeIsIdempotent() {
+        ConnectionState cs = new ConnectionState();
+        cs.startDiscovery();
+        long prev = cs.close();
+        assertEquals(ConnectionState.DISCOVERING, ConnectionState.state(prev));
+        long closed = cs.get();
+        assertEquals(closed, cs.close());
+    }
+
+    @Test
+    public void singleDiscoveryWinsHotPlugStorm() throws InterruptedException {
+        final ConnectionState cs = new ConnectionState();
+        final AtomicInteger winners = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; ++i) {
+                        if (cs.startDiscovery() >= 0) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, winners.get());
+        assertEquals(1, ConnectionState.generation(cs.get()));
+    }
+}
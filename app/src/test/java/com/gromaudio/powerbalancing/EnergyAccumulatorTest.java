@@ -0,0 +1,112 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EnergyAccumulatorTest {
+    private static final long SECOND_NS = 1000L * 1000 * 1000;
+
+    @Test
+    public void constantPower_oneHour() {
+        EnergyAccumulator e = new EnergyAccumulator();
+        for (int s = 0; s <= 3600; ++s) {
+            e.addSample(s * SECOND_NS, true, 10.0f);
+        }
+        assertEquals(10.0, e.getSessionWh(), 1e-9);
+        assertEquals(10.0, e.getSessionAverageW(), 1e-5);
+        assertEquals(3600 * SECOND_NS, e.getSessionDurationNs());
+        assertEquals(1, e.getSessionCount());
+    }
+
+    @Test
+    public void linearRamp_isExact() {
+        //0W -> 36W within 1 hour = 18 Wh
+        EnergyAccumulator e = new EnergyAccumulator();
+        e.addSample(0, true, 0.0f);
+        e.addSample(1800 * SECOND_NS, true, 18.0f);
+        e.addSample(3600 * SECOND_NS, true, 36.0f);
+        assertEquals(18.0, e.getSessionWh(), 1e-9);
+        assertEquals(36.0, e.getSessionPeakW(), 0);
+    }
+
+    @Test
+    public void detach_splitsSessions() {
+        EnergyAccumulator e = new EnergyAccumulator();
+        e.addSample(0, true, 36.0f);
+        e.addSample(100 * SECOND_NS, true, 36.0f);
+        assertTrue(e.addSample(101 * SECOND_NS, false, 0.0f));
+        assertFalse(e.isInSession());
+        assertEquals(1.0, e.getSessionWh(), 1e-9); //last session is kept after detach
+
+        e.addSample(200 * SECOND_NS, true, 72.0f);
+        e.addSample(300 * SECOND_NS, true, 72.0f);
+        assertEquals(2.0, e.getSessionWh(), 1e-9);
+        assertEquals(3.0, e.getLifetimeWh(), 1e-9);
+        assertEquals(72.0, e.getLifetimePeakW(), 0);
+        assertEquals(2, e.getSessionCount());
+    }
+
+    @Test
+    public void interrupt_doesNotIntegrateGap() {
+        EnergyAccumulator e = new EnergyAccumulator();
+        e.addSample(0, true, 36.0f);
+        e.addSample(100 * SECOND_NS, true, 36.0f);
+        assertTrue(e.interrupt());
+        e.addSample(10000 * SECOND_NS, true, 36.0f);
+        e.addSample(10100 * SECOND_NS, true, 36.0f);
+        assertEquals(2.0, e.getLifetimeWh(), 1e-9);
+    }
+
+    @Test
+    public void restore_continuesLifetime() {
+        EnergyAccumulator e = new EnergyAccumulator();
+        e.restore(1000.0, 0, 3600 * SECOND_NS, 50.0f, 7);
+        e.addSample(0, true, 36.0f);
+        e.addSample(100 * SECOND_NS, true, 36.0f);
+        assertEquals(1001.0, e.getLifetimeWh(), 1e-9);
+        assertEquals(8, e.getSessionCount());
+        assertEquals(50.0, e.getLifetimePeakW(), 0);
+    }
+
+    @Test
+    public void longRun_noPrecisionLoss() {
+        //30 days of 1 s polls at 7.5 W: ~2.6M increments of ~2e-3 Wh on a total of up to 5400 Wh
+        EnergyAccumulator e = new EnergyAccumulator();
+        long samples = 30L * 24 * 3600;
+        for (long s = 0; s <= samples; ++s) {
+            e.addSample(s * SECOND_NS, true, 7.5f);
+        }
+        double expected = samples * 7.5 / 3600;
+        assertEquals(expected, e.getLifetimeWh(), 1e-9);
+
+        double naive = 0;
+        for (long s = 0; s < samples; ++s) {
+            naive += 7.5 / 3600;
+        }
+        assertTrue(Math.abs(naive - expected) > 1e-8);
+    }
+
+    @Test
+    public void saveRestore_keepsCompensation() {
+        //A restart every hour for 30 days must end up with the same total as one accumulator
+        //interrupted at the same points
+        EnergyAccumulator continuous = new EnergyAccumulator();
+        EnergyAccumulator restored = new EnergyAccumulator();
+        long samples = 30L * 24 * 3600;
+        for (long s = 0; s <= samples; ++s) {
+            if (s % 3600 == 0) {
+                continuous.interrupt();
+                EnergyAccumulator next = new EnergyAccumulator();
+                next.restore(restored.getLifetimeWh(), restored.getLifetimeWhCompensation(),
+                        restored.getLifetimeDurationNs(), restored.getLifetimePeakW(), restored.getSessionCount());
+                restored = next;
+            }
+            continuous.addSample(s * SECOND_NS, true, 7.5f);
+            restored.addSample(s * SECOND_NS, true, 7.5f);
+        }
+        assertEquals(continuous.getLifetimeWh(), restored.getLifetimeWh(), 0);
+        assertEquals(continuous.getLifetimeDurationNs(), restored.getLifetimeDurationNs());
+        assertEquals(continuous.getSessionCount(), restored.getSessionCount());
+    }
+}
@@ -0,0 +1,89 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HubFrameTest {
+    static byte[] portParams(boolean attached, boolean negotiated, boolean capMismatch, boolean contractOperate,
+                             int vNegotiated50mV, int iNegotiated10mA, int vOperational20mV) {
+        byte[] b = new byte[32];
+        int flags = (attached ? 0x01 : 0) | (negotiated ? 0x10 : 0) | (capMismatch ? 0x20 : 0);
+        int w0 = (vNegotiated50mV << 6) | flags;
+        b[0] = (byte)w0;
+        b[1] = (byte)(w0 >> 8);
+        b[2] = (byte)iNegotiated10mA;
+        b[3] = (byte)(iNegotiated10mA >> 8);
+        b[4] = (byte)vOperational20mV;
+        b[5] = (byte)(vOperational20mV >> 8);
+        b[7] = (byte)(contractOperate ? 0x40 : 0);
+        return b;
+    }
+
+    static byte[] portPower(int maxPower500mW, boolean pbEnabled) {
+        byte[] b = new byte[32];
+        b[0] = (byte)maxPower500mW;
+        b[1] = (byte)(maxPower500mW >> 8);
+        b[3] = (byte)(pbEnabled ? 0x08 : 0);
+        return b;
+    }
+
+    static byte[] sysConfig(int milliWatts) {
+        byte[] b = new byte[32];
+        b[0] = (byte)milliWatts;
+        b[1] = (byte)(milliWatts >> 8);
+        b[2] = (byte)(milliWatts >> 16);
+        b[3] = (byte)0xAA; //not part of the power field
+        return b;
+    }
+
+    @Test
+    public void decode() {
+        byte[] thermal = new byte[32];
+        thermal[0] = (byte)0x21; //port1 WARNING, port3 SHUTDOWN
+        HubFrame frame = new HubFrame();
+        //port1: 20V (400*50mV) @ 3A (the current register reads twice the real value)
+        //port3: attached, not negotiated
+        frame.decode(123, thermal, sysConfig(100000),
+                portParams(true, true, false, false, 400, 600, 0), portPower(120, true),
+                portParams(true, false, true, false, 180, 200, 0), portPower(30, false));
+
+        assertEquals(123, frame.timestampNs);
+        assertEquals(100.0f, frame.sysPower, 1e-6);
+
+        HubFrame.PortFrame p1 = frame.port(1);
+        assertTrue(p1.attached);
+        assertTrue(p1.negotiated);
+        assertTrue(p1.pbEnabled);
+        assertEquals(ThermalState.WARNING, p1.thermal);
+        assertEquals(60.0f, p1.maxPower, 1e-6);
+        assertEquals(20.0f, p1.voltage, 1e-5);
+        assertEquals(3.0f, p1.current, 1e-5);
+        assertEquals(60.0f, p1.power, 1e-4);
+
+        HubFrame.PortFrame p3 = frame.port(2);
+        assertTrue(p3.attached);
+        assertFalse(p3.negotiated);
+        assertTrue(p3.capMismatch);
+        assertFalse(p3.pbEnabled);
+        assertEquals(ThermalState.SHUTDOWN, p3.thermal);
+        assertEquals(15.0f, p3.maxPower, 1e-6);
+        //Non-PD attach: reported as 5V/3A
+        assertEquals(5.0f, p3.voltage, 0);
+        assertEquals(3.0f, p3.current, 0);
+        assertEquals(9.0f, p3.negotiatedVoltage, 1e-5);
+    }
+
+    @Test
+    public void decode_operationalVoltage() {
+        HubFrame frame = new HubFrame();
+        //V_OPERATIONAL 14.8V (740*20mV) is used once the contract is operating
+        frame.decode(0, new byte[32], sysConfig(0),
+                portParams(true, true, false, true, 300, 400, 740), portPower(90, true),
+                portParams(false, false, false, false, 0, 0, 0), portPower(90, true));
+        assertEquals(14.8f, frame.port(1).voltage, 1e-4);
+        assertEquals(2.0f, frame.port(1).current, 1e-5);
+        assertFalse(frame.port(2).attached);
+        assertEquals(ThermalState.NORMAL, frame.port(2).thermal);
+    }
+}
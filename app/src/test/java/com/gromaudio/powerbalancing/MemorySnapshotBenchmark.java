@@ -0,0 +1,30 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Diff throughput of the default snapshot ranges (printed, not asserted).
+ * Not part of the default unit test run: ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+public class MemorySnapshotBenchmark {
+    @Test
+    public void diff() {
+        MemorySnapshot a = MemorySnapshotTest.snapshot(0);
+        MemorySnapshot b = MemorySnapshotTest.snapshot(0);
+        for (int i = 0; i < b.getSize(); i += 97) {
+            b.getData()[i] ^= 1;
+        }
+        final int iterations = 20000;
+        long acc = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            acc += b.diff(a, null);
+        }
+        long t1 = System.nanoTime();
+        System.out.println(String.format("MemorySnapshot: diff of %d bytes %.1f us (%.0f MB/s)",
+                a.getSize(), (t1 - t0) / 1000.0 / iterations, a.getSize() * (double)iterations * 1000 / (t1 - t0)));
+        assertEquals((long)iterations * ((b.getSize() + 96) / 97), acc);
+    }
+}
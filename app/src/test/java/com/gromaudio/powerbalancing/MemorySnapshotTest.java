@@ -0,0 +1,136 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemorySnapshotTest {
+    private static final int[] ADDRESSES = { 0xBFD9_7000, 0xBF81_A500 };
+    private static final int[] LENGTHS = { 0x1000, 0x100 };
+
+    static MemorySnapshot snapshot(long ts) {
+        MemorySnapshot s = new MemorySnapshot();
+        s.set(ADDRESSES, LENGTHS, ADDRESSES.length);
+        byte[] d = s.getData();
+        for (int i = 0; i < s.getSize(); ++i) {
+            d[i] = (byte)i;
+        }
+        s.timestampNs = ts;
+        return s;
+    }
+
+    @Test
+    public void diffRuns() {
+        MemorySnapshot a = snapshot(0);
+        MemorySnapshot b = snapshot(1000L * 1000 * 1000);
+        byte[] d = b.getData();
+        d[0x10]++;
+        d[0x11]++;
+        d[0x13]++;
+        d[0xFFF]++;                 //last byte of the PB block...
+        d[0x1000]++;                //...and first of the thermal area: two runs
+        final ArrayList<String> runs = new ArrayList<>();
+        int changed = b.diff(a, new MemorySnapshot.IDiffCallback() {
+            @Override
+            public void onRun(int address, int offset, int length) {
+                runs.add(String.format("%08X/%d/%d", address, offset, length));
+            }
+        });
+        assertEquals(5, changed);
+        assertEquals("[BFD97010/16/2, BFD97013/19/1, BFD97FFF/4095/1, BF81A500/4096/1]", runs.toString());
+
+        StringWriter sw = new StringWriter();
+        b.writeDiff(a, new PrintWriter(sw));
+        assertTrue(sw.toString(), sw.toString().startsWith("0xBFD97010 +2: 1011 -> 1112\n"));
+        assertTrue(sw.toString(), sw.toString().endsWith("# 5 of 4352 bytes changed in 1000 ms\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void diffNeedsSameLayout() {
+        MemorySnapshot a = snapshot(0);
+        MemorySnapshot b = new MemorySnapshot();
+        b.set(ADDRESSES, new int[] { 0x1000, 0x80 }, 2);
+        b.diff(a, null);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        MemorySnapshot a = snapshot(123);
+        a.readNs = 4567;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        a.writeTo(out);
+        assertEquals(4 + 4 + 8 + 8 + 4 + 2 * 8 + a.getSize(), out.size());
+
+        MemorySnapshot b = new MemorySnapshot();
+        b.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(b.sameLayout(a));
+        assertEquals(123, b.timestampNs);
+        assertEquals(4567, b.readNs);
+        assertEquals(0, b.diff(a, null));
+        assertArrayEquals(a.getData(), b.getData());
+    }
+
+    private static byte[] header(int count, int[] lengths) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x50424D53);
+        out.writeInt(1);
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeInt(count);
+        for (int length : lengths) {
+            out.writeInt(0xBFD9_7000);
+            out.writeInt(length);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_rejectsHugeRangeCount() throws IOException {
+        new MemorySnapshot().readFrom(new ByteArrayInputStream(header(Integer.MAX_VALUE, new int[0])));
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_rejectsOverflowingSize() throws IOException {
+        //Sums to a negative int
+        new MemorySnapshot().readFrom(new ByteArrayInputStream(
+                header(2, new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE })));
+    }
+
+    @Test
+    public void reuseKeepsBuffers() {
+        MemorySnapshot s = snapshot(0);
+        byte[] data = s.getData();
+        s.set(new int[] { 0xBFD9_7BC0 }, new int[] { 8 }, 1);
+        assertEquals(8, s.getSize());
+        assertTrue(data == s.getData());
+    }
+
+    @Test
+    public void chunking() {
+        assertEquals(4096, MemorySnapshotter.nextChunk(0xBFD9_7000, 0x1000, 4096));
+        assertEquals(100, MemorySnapshotter.nextChunk(0xBFD9_7000, 100, 4096));
+        assertEquals(64, MemorySnapshotter.nextChunk(0xBFD9_7000, 0x1000, 64));
+        //Don't cross the 64K boundary of wIndex
+        assertEquals(0x20, MemorySnapshotter.nextChunk(0xBFD9_FFE0, 0x1000, 4096));
+    }
+
+    @Test
+    public void probeLimit_staysInsideRange() {
+        assertEquals(0, MemorySnapshotter.probeLimit(4));
+        assertEquals(8, MemorySnapshotter.probeLimit(8));
+        assertEquals(8, MemorySnapshotter.probeLimit(15));
+        assertEquals(256, MemorySnapshotter.probeLimit(0x100));
+        assertEquals(MemorySnapshotter.MAX_CHUNK, MemorySnapshotter.probeLimit(0x10000));
+    }
+}
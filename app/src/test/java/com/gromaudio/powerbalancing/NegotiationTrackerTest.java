@@ -0,0 +1,158 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class NegotiationTrackerTest {
+    private static final long MS_NS = 1000L * 1000;
+
+    private static HubFrame.PortFrame frame(byte[] params) {
+        HubFrame.PortFrame f = new HubFrame.PortFrame();
+        f.decode(params, HubFrameTest.portPower(120, true), ThermalState.NORMAL);
+        return f;
+    }
+
+    private static final HubFrame.PortFrame DETACHED = frame(HubFrameTest.portParams(false, false, false, false, 0, 0, 0));
+    private static final HubFrame.PortFrame ATTACHED = frame(HubFrameTest.portParams(true, false, false, false, 0, 0, 0));
+    //20V @ 3A
+    private static final HubFrame.PortFrame NEGOTIATED = frame(HubFrameTest.portParams(true, true, false, false, 400, 600, 0));
+    private static final HubFrame.PortFrame OPERATING = frame(HubFrameTest.portParams(true, true, false, true, 400, 600, 1000));
+
+    private static BurstCapture capture(long[] timesMs, byte[][] params) {
+        BurstCapture c = new BurstCapture(timesMs.length);
+        c.start(1, BurstCapture.TRIGGER_MANUAL, HubFrameTest.portPower(120, true));
+        for (int i = 0; i < timesMs.length; ++i) {
+            c.add(timesMs[i] * MS_NS, params[i]);
+        }
+        return c;
+    }
+
+    private static final byte[] P_DETACHED = HubFrameTest.portParams(false, false, false, false, 0, 0, 0);
+    private static final byte[] P_ATTACHED = HubFrameTest.portParams(true, false, false, false, 0, 0, 0);
+    private static final byte[] P_NEGOTIATED = HubFrameTest.portParams(true, true, false, false, 400, 600, 0);
+    private static final byte[] P_RAMPING = HubFrameTest.portParams(true, true, false, true, 400, 600, 500);
+    private static final byte[] P_OPERATING = HubFrameTest.portParams(true, true, false, true, 400, 600, 1000);
+
+    private static int count(NegotiationTracker t, int latency) {
+        int n = 0;
+        for (int tier = 0; tier < NegotiationTracker.TIERS; ++tier) {
+            n += t.getHistogram(latency, tier).getCount();
+        }
+        return n;
+    }
+
+    @Test
+    public void capture_timesAttachToFullPower() {
+        //Armed capture: pre-trigger samples in front of the attach
+        NegotiationTracker t = new NegotiationTracker();
+        t.onCapture(capture(new long[] { 0, 10, 12, 45, 60, 80 },
+                new byte[][] { P_DETACHED, P_ATTACHED, P_ATTACHED, P_NEGOTIATED, P_RAMPING, P_OPERATING }));
+
+        assertEquals(35 * MS_NS, t.getLastAttachToNegotiatedNs());
+        assertEquals(50 * MS_NS, t.getLastAttachToContractOperateNs());
+        //20V negotiated: V/I leave the 5V/3A defaults as soon as negotiated
+        assertEquals(35 * MS_NS, t.getLastAttachToNonDefaultViNs());
+        //V_OPERATIONAL reaches the negotiated 20V after the contract is operating
+        assertEquals(70 * MS_NS, t.getLastAttachToFullPowerNs());
+        assertEquals(10 * MS_NS, t.getLastAttachResolutionNs());
+        int tier = NegotiationTracker.tierOf(60.0f);
+        assertEquals(tier, t.getLastTier());
+        assertEquals(1, t.getHistogram(NegotiationTracker.LATENCY_NEGOTIATED, tier).getCount());
+        assertEquals(1, t.getHistogram(NegotiationTracker.LATENCY_NON_DEFAULT_VI, tier).getCount());
+        assertEquals(1, t.getHistogram(NegotiationTracker.LATENCY_FULL_POWER, tier).getCount());
+
+        StringWriter sw = new StringWriter();
+        t.dump("", new PrintWriter(sw));
+        assertTrue(sw.toString().contains("<=60W attach->negotiated: n=1"));
+        assertTrue(sw.toString().contains("<=60W attach->non_default_vi: n=1"));
+    }
+
+    @Test
+    public void defaultContract_isNonDefaultWhenNegotiated() {
+        NegotiationTracker t = new NegotiationTracker();
+        t.onCapture(capture(new long[] { 0, 100, 130, 150 }, new byte[][] { P_DETACHED, P_ATTACHED,
+                HubFrameTest.portParams(true, true, false, false, 100, 600, 0),
+                HubFrameTest.portParams(true, true, false, true, 100, 600, 250) }));
+        assertEquals(30 * MS_NS, t.getLastAttachToNonDefaultViNs());
+        assertEquals(50 * MS_NS, t.getLastAttachToFullPowerNs());
+        assertEquals(NegotiationTracker.tierOf(15.0f), t.getLastTier());
+    }
+
+    @Test
+    public void pollAttach_timesLaterEdgesOnCapture() {
+        //Attach seen by a poll, the capture it triggered starts after it
+        NegotiationTracker t = new NegotiationTracker();
+        t.onPoll(0, DETACHED);
+        t.onPoll(1000 * MS_NS, ATTACHED);
+        assertEquals(1000 * MS_NS, t.getLastAttachResolutionNs());
+        t.onCapture(capture(new long[] { 1002, 1040, 1060 }, new byte[][] { P_ATTACHED, P_NEGOTIATED, P_OPERATING }));
+        assertEquals(40 * MS_NS, t.getLastAttachToNegotiatedNs());
+        assertEquals(60 * MS_NS, t.getLastAttachToFullPowerNs());
+        assertEquals(1, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+        assertEquals(1, count(t, NegotiationTracker.LATENCY_FULL_POWER));
+    }
+
+    @Test
+    public void pollAttach_edgesAlreadyPresentAreNotTimed() {
+        NegotiationTracker t = new NegotiationTracker();
+        t.onPoll(0, DETACHED);
+        t.onPoll(1000 * MS_NS, NEGOTIATED);
+        t.onCapture(capture(new long[] { 1002, 1050 }, new byte[][] { P_NEGOTIATED, P_OPERATING }));
+        assertEquals(-1, t.getLastAttachToNegotiatedNs());
+        assertEquals(50 * MS_NS, t.getLastAttachToFullPowerNs());
+        assertEquals(0, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+        assertEquals(1, count(t, NegotiationTracker.LATENCY_FULL_POWER));
+    }
+
+    @Test
+    public void capture_refinesPollAttach() {
+        //The armed capture completes after the poll saw the attach
+        NegotiationTracker t = new NegotiationTracker();
+        t.onPoll(0, DETACHED);
+        t.onPoll(1000 * MS_NS, OPERATING);
+        assertEquals(-1, t.getLastAttachToNegotiatedNs());
+        t.onCapture(capture(new long[] { 890, 900, 910, 950 }, new byte[][] { P_DETACHED, P_DETACHED, P_ATTACHED, P_OPERATING }));
+        assertEquals(40 * MS_NS, t.getLastAttachToNegotiatedNs());
+        assertEquals(10 * MS_NS, t.getLastAttachResolutionNs());
+        assertEquals(1, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+        //A poll of the same attach doesn't start another one
+        t.onPoll(2000 * MS_NS, OPERATING);
+        assertEquals(40 * MS_NS, t.getLastAttachToNegotiatedNs());
+        assertEquals(1, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+    }
+
+    @Test
+    public void lowPowerPollAttach_isNotTimed() {
+        NegotiationTracker t = new NegotiationTracker();
+        t.onPoll(0, DETACHED);
+        t.onPoll(60 * 1000 * MS_NS, ATTACHED);
+        t.onCapture(capture(new long[] { 60002, 60040 }, new byte[][] { P_ATTACHED, P_OPERATING }));
+        assertEquals(-1, t.getLastAttachToNegotiatedNs());
+        assertEquals(0, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+        assertEquals(1, t.getUntimedAttaches());
+    }
+
+    @Test
+    public void detach_recordsEdgesSeenSoFar() {
+        NegotiationTracker t = new NegotiationTracker();
+        t.onCapture(capture(new long[] { 0, 10, 40 }, new byte[][] { P_DETACHED, P_ATTACHED, P_NEGOTIATED }));
+        assertEquals(0, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+        t.onPoll(1000 * MS_NS, NEGOTIATED);
+        t.onPoll(2000 * MS_NS, DETACHED);
+        assertEquals(1, count(t, NegotiationTracker.LATENCY_NEGOTIATED));
+        assertEquals(0, count(t, NegotiationTracker.LATENCY_FULL_POWER));
+    }
+
+    @Test
+    public void histogramBuckets() {
+        assertEquals(0, LatencyHistogram.bucketOf(500 * 1000));
+        assertEquals(1, LatencyHistogram.bucketOf(1 * MS_NS));
+        assertEquals(2, LatencyHistogram.bucketOf(3 * MS_NS));
+        assertEquals(11, LatencyHistogram.bucketOf(1024 * MS_NS));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+}
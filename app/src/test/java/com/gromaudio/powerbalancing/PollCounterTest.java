@@ -0,0 +1,49 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PollCounterTest {
+    private static final long SEC = 1000L * 1000 * 1000;
+
+    @Test
+    public void pollsPerHourPerMode() {
+        PollCounter c = new PollCounter();
+        c.setMode(PollCounter.MODE_FULL, 0, 0);
+        for (int i = 0; i < 60; ++i) {
+            c.poll();
+        }
+        c.setMode(PollCounter.MODE_LOW_POWER, 60 * SEC, 60 * SEC);
+        for (int i = 0; i < 60; ++i) {
+            c.poll();
+        }
+        c.setMode(PollCounter.MODE_NONE, 3660 * SEC, 3660 * SEC);
+        c.poll(); //Not polling, not counted
+
+        assertEquals(60, c.getPolls(PollCounter.MODE_FULL));
+        assertEquals(60, c.getPolls(PollCounter.MODE_LOW_POWER));
+        assertEquals(3600, c.getPollsPerHour(PollCounter.MODE_FULL, 4000 * SEC), 0.01f);
+        assertEquals(60, c.getPollsPerHour(PollCounter.MODE_LOW_POWER, 4000 * SEC), 0.01f);
+    }
+
+    @Test
+    public void currentModeTimeIsLive() {
+        PollCounter c = new PollCounter();
+        c.setMode(PollCounter.MODE_LOW_POWER, 10 * SEC, 10 * SEC);
+        assertEquals(50 * SEC, c.getTimeNs(PollCounter.MODE_LOW_POWER, 60 * SEC));
+        assertEquals(0, c.getTimeNs(PollCounter.MODE_FULL, 60 * SEC));
+        assertEquals(0, c.getPollsPerHour(PollCounter.MODE_FULL, 60 * SEC), 0);
+    }
+
+    @Test
+    public void suspendedTimeIsNotMonitored() {
+        PollCounter c = new PollCounter();
+        c.setMode(PollCounter.MODE_LOW_POWER, 0, 0);
+        //Suspended for 50 of the 60 s: the uptime clock only advanced by 10 s
+        assertEquals(50 * SEC, c.getSuspendedNs(PollCounter.MODE_LOW_POWER, 60 * SEC, 10 * SEC));
+        c.setMode(PollCounter.MODE_FULL, 60 * SEC, 10 * SEC);
+        assertEquals(50 * SEC, c.getSuspendedNs(PollCounter.MODE_LOW_POWER, 120 * SEC, 70 * SEC));
+        assertEquals(0, c.getSuspendedNs(PollCounter.MODE_FULL, 120 * SEC, 70 * SEC));
+    }
+}
@@ -0,0 +1,37 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleRingTest {
+
+    @Test
+    public void absoluteIndexing() {
+        SampleRing r = new SampleRing(4);
+        assertEquals(0, r.first());
+        assertEquals(0, r.count());
+        for (int i = 0; i < 3; ++i) {
+            r.add(i);
+        }
+        assertEquals(0, r.first());
+        assertEquals(3, r.count());
+        assertEquals(2, r.get(2), 0);
+    }
+
+    @Test
+    public void overwritesOldest() {
+        SampleRing r = new SampleRing(4);
+        for (int i = 0; i < 10; ++i) {
+            r.add(i * 10);
+        }
+        assertEquals(6, r.first());
+        assertEquals(10, r.count());
+        for (long n = r.first(); n < r.count(); ++n) {
+            assertEquals(n * 10, r.get(n), 0);
+        }
+        r.clear();
+        assertEquals(0, r.count());
+        assertEquals(0, r.first());
+    }
+}
@@ -0,0 +1,44 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Insert and query cost of PortStatistics (printed, not asserted).
+ * Not part of the default unit test run: ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+public class StreamingStatisticsBenchmark {
+    @Test
+    public void insertAndQuery() {
+        PortStatistics stats = new PortStatistics();
+        MetricSketch out = PortStatistics.newQuerySketch(PortStatistics.METRIC_POWER);
+        Random random = new Random(3);
+        final int samples = 2000000;
+        float[] p = new float[1024];
+        for (int i = 0; i < p.length; ++i) {
+            p[i] = 60 * random.nextFloat();
+        }
+        //warm up
+        for (int i = 0; i < samples / 10; ++i) {
+            stats.add(i * 50L * 1000 * 1000, p[i & 1023], 20.0f, 3.0f);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < samples; ++i) {
+            stats.add(i * 50L * 1000 * 1000, p[i & 1023], 20.0f, 3.0f); //20 Hz
+        }
+        long t1 = System.nanoTime();
+        final int queries = 10000;
+        float acc = 0;
+        for (int i = 0; i < queries; ++i) {
+            stats.query(PortStatistics.METRIC_POWER, i % PortStatistics.WINDOWS, samples * 50L * 1000 * 1000, out);
+            acc += out.quantile(0.95f);
+        }
+        long t2 = System.nanoTime();
+        System.out.println(String.format("PortStatistics: insert %.1f ns/frame (3 metrics x 3 windows), query+p95 %.1f us (%f)",
+                (t1 - t0) / (double)samples, (t2 - t1) / 1000.0 / queries, acc));
+        assertTrue(acc > 0);
+    }
+}
@@ -0,0 +1,95 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accuracy of the streaming sketches against exact computation.
+ * The cost benchmark is in StreamingStatisticsBenchmark.
+ */
+public class StreamingStatisticsTest {
+    private static final long SECOND_NS = 1000L * 1000 * 1000;
+    private static final float[] QUANTILES = { 0.5f, 0.95f, 0.99f };
+
+    private static float exactQuantile(float[] sorted, float q) {
+        int idx = (int)Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+
+    @Test
+    public void sketch_matchesExact() {
+        Random random = new Random(1);
+        MetricSketch sketch = new MetricSketch(0, 128.0f, 256);
+        float[] values = new float[100000];
+        double sum = 0;
+        for (int i = 0; i < values.length; ++i) {
+            //bimodal: idle trickle and fast charging
+            float v = random.nextBoolean() ? (float)(2.5 + random.nextGaussian()) : (float)(45 + 5 * random.nextGaussian());
+            values[i] = v;
+            sum += v;
+            sketch.add(v);
+        }
+        double mean = sum / values.length;
+        double m2 = 0;
+        for (float v : values) {
+            m2 += (v - mean) * (v - mean);
+        }
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(sorted[0], sketch.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], sketch.getMax(), 0);
+        assertEquals(mean, sketch.getMean(), 1e-3);
+        assertEquals(m2 / (values.length - 1), sketch.getVariance(), 1e-2);
+        for (float q : QUANTILES) {
+            assertEquals("p" + (int)(q * 100), exactQuantile(sorted, q), sketch.quantile(q), sketch.getBinWidth());
+        }
+    }
+
+    @Test
+    public void merge_equalsSingleSketch() {
+        Random random = new Random(2);
+        MetricSketch all = new MetricSketch(0, 25.6f, 256);
+        MetricSketch a = new MetricSketch(0, 25.6f, 256);
+        MetricSketch b = new MetricSketch(0, 25.6f, 256);
+        for (int i = 0; i < 10000; ++i) {
+            float v = 5 + 15 * random.nextFloat();
+            all.add(v);
+            (i % 3 == 0 ? a : b).add(v);
+        }
+        a.merge(b);
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMean(), a.getMean(), 1e-4);
+        assertEquals(all.getVariance(), a.getVariance(), 1e-3);
+        assertEquals(all.getMin(), a.getMin(), 0);
+        assertEquals(all.getMax(), a.getMax(), 0);
+        for (float q : QUANTILES) {
+            assertEquals(all.quantile(q), a.quantile(q), 1e-4);
+        }
+    }
+
+    @Test
+    public void window_dropsOldSamples() {
+        //1 minute window, 12 slots of 5s
+        WindowedStats stats = new WindowedStats(60 * SECOND_NS, 12, 0, 128.0f, 256);
+        MetricSketch out = new MetricSketch(0, 128.0f, 256);
+        for (int s = 0; s < 60; ++s) {
+            stats.add(s * SECOND_NS, 10.0f);
+        }
+        for (int s = 60; s < 120; ++s) {
+            stats.add(s * SECOND_NS, 50.0f);
+        }
+        stats.query(119 * SECOND_NS, out);
+        assertEquals(60, out.getCount());
+        assertEquals(50.0f, out.getMin(), 0);
+
+        //Nothing new for a long time
+        stats.query(3600 * SECOND_NS, out);
+        assertEquals(0, out.getCount());
+    }
+}
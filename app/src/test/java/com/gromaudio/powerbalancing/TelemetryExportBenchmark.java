@@ -0,0 +1,106 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost and latency of the telemetry region (printed, not asserted).
+ * Not part of the default unit test run: ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+public class TelemetryExportBenchmark {
+    @Test
+    public void readWriteCost() {
+        ByteBuffer region = TelemetryExportTest.newRegion();
+        TelemetryReader reader = new TelemetryReader(null, region.duplicate());
+        HubFrame frame = new HubFrame();
+        TelemetryExportTest.fill(frame, 1);
+        final int n = 2000000;
+        int seq = 0;
+        for (int i = 0; i < n / 10; ++i) {
+            seq = TelemetryExporter.writeFrame(region, seq, frame, HubManager.HUB_STATUS_CONNECTED);
+            reader.read();
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            seq = TelemetryExporter.writeFrame(region, seq, frame, HubManager.HUB_STATUS_CONNECTED);
+        }
+        long t1 = System.nanoTime();
+        int ok = 0;
+        for (int i = 0; i < n; ++i) {
+            if (reader.read()) ok++;
+        }
+        long t2 = System.nanoTime();
+        System.out.println(String.format("Telemetry: write %.1f ns/frame, read %.1f ns/frame",
+                (t1 - t0) / (double)n, (t2 - t1) / (double)n));
+        assertEquals(n, ok);
+    }
+
+    @Test
+    public void concurrentReadWrite() throws Exception {
+        final ByteBuffer region = TelemetryExportTest.newRegion();
+        final long durationNs = 500L * 1000 * 1000;
+        final long periodNs = 1000L * 1000; //1 kHz publisher, well above any poll rate
+        final long[] writes = new long[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HubFrame frame = new HubFrame();
+                int seq = 0;
+                long now = System.nanoTime();
+                long end = now + durationNs;
+                long next = now;
+                long n = 0;
+                while ((now = System.nanoTime()) < end) {
+                    if (now < next) {
+                        LockSupport.parkNanos(next - now);
+                        continue;
+                    }
+                    next += periodNs;
+                    TelemetryExportTest.fill(frame, ++n);
+                    seq = TelemetryExporter.writeFrame(region, seq, frame, HubManager.HUB_STATUS_CONNECTED);
+                }
+                writes[0] = n;
+            }
+        });
+        TelemetryReader reader = new TelemetryReader(null, region.duplicate());
+        writer.start();
+        long reads = 0;
+        long failed = 0;
+        long latencySum = 0;
+        long latencyMax = 0;
+        int lastSeq = -1;
+        while (writer.isAlive()) {
+            int seq = reader.getSequence();
+            if (seq == lastSeq) {
+                Thread.yield();
+                continue;
+            }
+            if (!reader.read()) {
+                failed++;
+                continue;
+            }
+            lastSeq = reader.getSnapshotSequence();
+            if (reader.getHubStatus() != HubManager.HUB_STATUS_CONNECTED) {
+                continue; //initial frame
+            }
+            long latency = System.nanoTime() - reader.getTimestampNs();
+            latencySum += latency;
+            latencyMax = Math.max(latencyMax, latency);
+            reads++;
+            float n = reader.getSysPower();
+            assertEquals(n + 1, reader.getMaxPower(0), 0);
+            assertEquals(n + 4, reader.getPower(1), 0);
+            assertEquals(((long)n & 1) != 0, reader.isAttached(1));
+        }
+        writer.join();
+        System.out.println(String.format("Telemetry: %d frames published, %d consistent reads, %d retries, %d failed, latency avg %.2f us, max %.2f us",
+                writes[0], reads, reader.getRetries(), failed,
+                reads == 0 ? 0 : latencySum / 1000.0 / reads, latencyMax / 1000.0));
+        assertTrue(reads > 0);
+    }
+}
@@ -0,0 +1,110 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Seqlock consistency of the telemetry region (benchmarks in TelemetryExportBenchmark).
+ * A direct ByteBuffer stands in for the shared memory mapping.
+ */
+public class TelemetryExportTest {
+    static ByteBuffer newRegion() {
+        ByteBuffer b = ByteBuffer.allocateDirect(TelemetryLayout.REGION_SIZE).order(ByteOrder.nativeOrder());
+        TelemetryExporter.initHeader(b);
+        return b;
+    }
+
+    //Every field is derived from n, so a torn frame is detectable.
+    static void fill(HubFrame frame, long n) {
+        frame.timestampNs = System.nanoTime();
+        frame.sysPower = n;
+        for (int p = 0; p < HubFrame.PORTS; ++p) {
+            HubFrame.PortFrame f = frame.ports[p];
+            f.attached = (n & 1) != 0;
+            f.thermal = ThermalState.NORMAL;
+            f.maxPower = n + 1;
+            f.voltage = n + 2;
+            f.current = n + 3;
+            f.power = n + 4;
+        }
+    }
+
+    @Test
+    public void writeRead() {
+        ByteBuffer region = newRegion();
+        TelemetryReader reader = new TelemetryReader(null, region.duplicate());
+        assertTrue(reader.read());
+        assertEquals(HubManager.HUB_STATUS_DISCONNECTED, reader.getHubStatus());
+
+        HubFrame frame = new HubFrame();
+        fill(frame, 7);
+        frame.ports[1].thermal = ThermalState.WARNING;
+        int seq = TelemetryExporter.writeFrame(region, 0, frame, HubManager.HUB_STATUS_CONNECTED);
+        assertEquals(seq, reader.getSequence());
+        assertTrue(reader.read());
+        assertEquals(frame.timestampNs, reader.getTimestampNs());
+        assertEquals(HubManager.HUB_STATUS_CONNECTED, reader.getHubStatus());
+        assertEquals(7.0f, reader.getSysPower(), 0);
+        assertTrue(reader.isAttached(0));
+        assertEquals(TelemetryLayout.THERMAL_WARNING, reader.getThermal(1));
+        assertEquals(11.0f, reader.getPower(1), 0);
+
+        //Writer in the middle of an update
+        region.putInt(TelemetryLayout.OFF_SEQUENCE, seq + 1);
+        assertFalse(reader.read());
+    }
+
+    @Test
+    public void disconnected_clearsPorts() {
+        ByteBuffer region = newRegion();
+        TelemetryReader reader = new TelemetryReader(null, region.duplicate());
+        HubFrame frame = new HubFrame();
+        fill(frame, 7);
+        int seq = TelemetryExporter.writeFrame(region, 0, frame, HubManager.HUB_STATUS_CONNECTED);
+        seq = TelemetryExporter.writeDisconnected(region, seq, 1234);
+        assertTrue(reader.read());
+        assertEquals(seq, reader.getSnapshotSequence());
+        assertEquals(1234, reader.getTimestampNs());
+        assertEquals(HubManager.HUB_STATUS_DISCONNECTED, reader.getHubStatus());
+        for (int p = 0; p < TelemetryLayout.PORTS; ++p) {
+            assertFalse(reader.isAttached(p));
+            assertEquals(TelemetryLayout.THERMAL_NOT_IMPLEMENTED, reader.getThermal(p));
+            assertEquals(0.0f, reader.getPower(p), 0);
+        }
+    }
+
+    @Test
+    public void concurrentReadWrite_neverTorn() throws Exception {
+        final ByteBuffer region = newRegion();
+        final long frames = 100000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HubFrame frame = new HubFrame();
+                int seq = 0;
+                for (long n = 1; n <= frames; ++n) {
+                    fill(frame, n);
+                    seq = TelemetryExporter.writeFrame(region, seq, frame, HubManager.HUB_STATUS_CONNECTED);
+                }
+            }
+        });
+        TelemetryReader reader = new TelemetryReader(null, region.duplicate());
+        writer.start();
+        long reads = 0;
+        while (writer.isAlive() || reads == 0) {
+            if (!reader.read() || reader.getHubStatus() != HubManager.HUB_STATUS_CONNECTED) {
+                continue;
+            }
+            reads++;
+            float n = reader.getSysPower();
+            assertEquals(n + 1, reader.getMaxPower(0), 0);
+            assertEquals(n + 4, reader.getPower(1), 0);
+            assertEquals(((long)n & 1) != 0, reader.isAttached(1));
+        }
+        writer.join();
+    }
+}
@@ -0,0 +1,41 @@
+package com.gromaudio.powerbalancing;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TenthsFormatTest {
+    private static String format(TenthsFormat f, float... values) {
+        int[] tenths = new int[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            tenths[i] = TenthsFormat.toTenths(values[i]);
+        }
+        char[] out = new char[f.getMaxLength()];
+        return new String(out, 0, f.format(tenths, out));
+    }
+
+    @Test
+    public void matchesStringFormat() {
+        String pattern = "%1$.1fV @ %2$.1fA";
+        TenthsFormat f = new TenthsFormat(pattern, '.');
+        float[] values = { 0, 0.04f, 0.06f, 1, 4.99f, 5, 9.05f, 12.3f, 19.96f, 100, 12345.6f, -3.2f, -0.26f };
+        for (float v : values) {
+            assertEquals(String.format(Locale.US, pattern, v, 3.0f), format(f, v, 3.0f));
+        }
+    }
+
+    @Test
+    public void argumentOrderAndLiterals() {
+        assertEquals("Remaining Total System Power: 42.5W", format(
+                new TenthsFormat("Remaining Total System Power: %1$.1fW", '.'), 42.5f));
+        assertEquals("2,0 / 1,0 100%", format(new TenthsFormat("%2$.1f / %1$.1f 100%%", ','), 1.0f, 2.0f));
+        assertEquals("7.5W", format(new TenthsFormat("%.1fW", '.'), 7.5f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedPattern() {
+        new TenthsFormat("%d W", '.');
+    }
+}